@@ -0,0 +1,226 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.Tag;
+import android.nfc.tech.NfcA;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Learns transceive timeouts from observed latency.
+ *
+ * Latencies are kept in a bucketed histogram per technology and, optionally, per UID prefix
+ * or ATQA/SAK. The suggested timeout is a high percentile of the histogram plus a margin,
+ * clamped to a configured range. Histograms are halved once they hold more than the window
+ * size so the estimate follows the cards currently in use.
+ *
+ * A tag lost on a connection with a learned timeout widens the timeout of its key to twice
+ * the learned value, or twice the platform default while nothing is learned, up to the
+ * maximum. Card removals look the same as slow cards, so the widening does not add up and
+ * expires after a number of successful exchanges.
+ */
+class AdaptiveTimeouts {
+
+    static final String KEY_BY_TECH = "tech";
+    static final String KEY_BY_UID_PREFIX = "uidPrefix";
+    static final String KEY_BY_ATQA_SAK = "atqaSak";
+
+    // upper bounds in ms, the last bucket collects everything slower
+    private static final int[] BUCKETS = {
+            2, 4, 6, 8, 12, 16, 24, 32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024, 1536, 2048, 3072, 4096, 5000
+    };
+    private static final int MAX_HISTOGRAMS = 256;
+    // successful exchanges a widened timeout stays applied for
+    private static final int WIDENED_EXCHANGES = 10;
+
+    private boolean enabled = false;
+    private double percentile = 0.99;
+    private int marginMs = 20;
+    private int minTimeoutMs = 50;
+    private int maxTimeoutMs = 5000;
+    private int minSamples = 20;
+    private int window = 1000;
+    private String keyBy = KEY_BY_TECH;
+    private int uidPrefixLength = 3;
+
+    private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Histogram> eldest) {
+            return size() > MAX_HISTOGRAMS;
+        }
+    };
+
+    synchronized void configure(JSONObject options) {
+        enabled = options.optBoolean("enabled", true);
+        percentile = Math.min(1.0, Math.max(0.5, options.optDouble("percentile", percentile)));
+        marginMs = options.optInt("marginMs", marginMs);
+        minTimeoutMs = options.optInt("minMs", minTimeoutMs);
+        maxTimeoutMs = options.optInt("maxMs", maxTimeoutMs);
+        minSamples = Math.max(1, options.optInt("minSamples", minSamples));
+        window = Math.max(minSamples * 2, options.optInt("window", window));
+        keyBy = options.optString("keyBy", keyBy);
+        uidPrefixLength = options.optInt("uidPrefixLength", uidPrefixLength);
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Statistics key for a tag and technology, depending on the configured keyBy.
+     */
+    synchronized String keyFor(String tech, Tag tag) {
+        if (tag != null && KEY_BY_UID_PREFIX.equals(keyBy)) {
+            byte[] id = tag.getId();
+            byte[] prefix = new byte[Math.min(uidPrefixLength, id.length)];
+            System.arraycopy(id, 0, prefix, 0, prefix.length);
+            return tech + "/" + Util.bytesToHex(prefix);
+        }
+        if (tag != null && KEY_BY_ATQA_SAK.equals(keyBy)) {
+            NfcA nfcA = NfcA.get(tag);
+            if (nfcA != null) {
+                return tech + "/" + Util.bytesToHex(nfcA.getAtqa()) + "/" + Integer.toHexString(nfcA.getSak());
+            }
+        }
+        return tech;
+    }
+
+    synchronized void recordLatency(String key, long latencyMs) {
+        Histogram histogram = histogram(key);
+        histogram.add(latencyMs);
+        if (histogram.widenedExchanges > 0 && --histogram.widenedExchanges == 0) {
+            histogram.widenedMs = -1;
+        }
+        if (!key.equals(techOf(key))) {
+            histogram(techOf(key)).add(latencyMs);
+        }
+    }
+
+    /**
+     * @param platformTimeoutMs the default timeout of the technology when the connection uses
+     * learned timeouts, otherwise -1 to only count the loss
+     */
+    synchronized void recordTagLost(String key, int platformTimeoutMs) {
+        Histogram histogram = histogram(key);
+        histogram.tagLost++;
+        if (platformTimeoutMs < 0) {
+            return;
+        }
+        int learned = learnedTimeoutFor(key);
+        int base = learned >= 0 ? learned : platformTimeoutMs;
+        histogram.widenedMs = clamp(base * 2);
+        histogram.widenedExchanges = WIDENED_EXCHANGES;
+    }
+
+    /**
+     * @return the learned timeout for the key, falling back to the technology wide value, or -1
+     * while there are not enough samples and no tag was lost
+     */
+    synchronized int timeoutFor(String key) {
+        Histogram own = histograms.get(key);
+        int widened = own != null ? own.widenedMs : -1;
+        return Math.max(widened, learnedTimeoutFor(key));
+    }
+
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("enabled", enabled);
+        json.put("percentile", percentile);
+        json.put("marginMs", marginMs);
+        JSONObject learned = new JSONObject();
+        // lookups reorder the access ordered map, iterate over a copy
+        for (Map.Entry<String, Histogram> entry : new ArrayList<>(histograms.entrySet())) {
+            Histogram histogram = entry.getValue();
+            JSONObject stats = new JSONObject();
+            stats.put("samples", histogram.count);
+            stats.put("meanMs", histogram.count > 0 ? histogram.totalMs / histogram.count : 0);
+            stats.put("maxMs", histogram.maxMs);
+            stats.put("percentileMs", histogram.count > 0 ? histogram.percentile(percentile) : 0);
+            stats.put("tagLost", histogram.tagLost);
+            stats.put("timeoutMs", timeoutFor(entry.getKey()));
+            learned.put(entry.getKey(), stats);
+        }
+        json.put("timeouts", learned);
+        return json;
+    }
+
+    private int learnedTimeoutFor(String key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null || histogram.count < minSamples) {
+            histogram = histograms.get(techOf(key));
+        }
+        if (histogram == null || histogram.count < minSamples) {
+            return -1;
+        }
+        return clamp(histogram.percentile(percentile) + marginMs);
+    }
+
+    private Histogram histogram(String key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(key, histogram);
+        }
+        return histogram;
+    }
+
+    private int clamp(int timeout) {
+        return Math.max(minTimeoutMs, Math.min(maxTimeoutMs, timeout));
+    }
+
+    private static String techOf(String key) {
+        int separator = key.indexOf('/');
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    private class Histogram {
+        final long[] counts = new long[BUCKETS.length + 1];
+        long count;
+        long totalMs;
+        long maxMs;
+        long tagLost;
+        int widenedMs = -1;
+        int widenedExchanges;
+
+        void add(long latencyMs) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && latencyMs > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            totalMs += latencyMs;
+            maxMs = Math.max(maxMs, latencyMs);
+
+            if (count > window) {
+                decay();
+            }
+        }
+
+        void decay() {
+            long remaining = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = counts[i] / 2;
+                remaining += counts[i];
+            }
+            totalMs = count > 0 ? totalMs * remaining / count : 0;
+            count = remaining;
+        }
+
+        int percentile(double p) {
+            long target = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return i < BUCKETS.length ? BUCKETS[i] : (int) Math.max(maxMs, BUCKETS[BUCKETS.length - 1]);
+                }
+            }
+            return (int) maxMs;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled APDU routes for {@link NfcHceService}.
+ *
+ * Routes are grouped by AID and stored in a byte trie on the command prefix, so answering a
+ * command is a walk over at most the prefix length without any allocation besides the
+ * response. Routes registered for the AID "*" apply to every selected AID.
+ *
+ * Responses are hex strings that may contain placeholders:
+ * {cmd:offset:length} copies bytes of the command, {counter:width} inserts a big endian
+ * counter that increments each time the route answers.
+ */
+class ApduRoutingTable {
+
+    static final String ANY_AID = "*";
+
+    private final Map<String, Node> rootsByAid = new HashMap<>();
+    private final Node anyAidRoot = new Node();
+    private final List<String> aids = new ArrayList<>();
+
+    private ApduRoutingTable() {
+    }
+
+    /**
+     * @param json {aids: ["F0010203040506"], routes: [{aid, prefix, response}]}
+     */
+    static ApduRoutingTable compile(JSONObject json) throws JSONException {
+        ApduRoutingTable table = new ApduRoutingTable();
+
+        JSONArray aids = json.optJSONArray("aids");
+        if (aids != null) {
+            for (int i = 0; i < aids.length(); i++) {
+                table.addAid(aids.getString(i));
+            }
+        }
+
+        JSONArray routes = json.optJSONArray("routes");
+        if (routes != null) {
+            for (int i = 0; i < routes.length(); i++) {
+                JSONObject route = routes.getJSONObject(i);
+                String aid = route.optString("aid", ANY_AID).toUpperCase();
+                Node root;
+                if (ANY_AID.equals(aid)) {
+                    root = table.anyAidRoot;
+                } else {
+                    root = table.addAid(aid);
+                }
+                byte[] prefix = Template.hex(route.optString("prefix", ""));
+                Node node = root;
+                for (byte b : prefix) {
+                    node = node.child(b & 0xFF);
+                }
+                node.response = Template.parse(route.getString("response"));
+            }
+        }
+        return table;
+    }
+
+    List<String> getAids() {
+        return aids;
+    }
+
+    /**
+     * Root of the routes for an AID, or null when the AID is not registered.
+     */
+    Node rootFor(byte[] aid) {
+        return rootsByAid.get(Util.bytesToHex(aid));
+    }
+
+    /**
+     * Answers a command from the routes of the selected AID, then from the routes for any AID.
+     *
+     * @return the response or null when no route matches
+     */
+    byte[] respond(Node selectedRoot, byte[] command) {
+        Template response = null;
+        if (selectedRoot != null) {
+            response = selectedRoot.longestMatch(command);
+        }
+        if (response == null) {
+            response = anyAidRoot.longestMatch(command);
+        }
+        return response == null ? null : response.render(command);
+    }
+
+    private Node addAid(String aid) throws JSONException {
+        String key = Util.bytesToHex(Template.hex(aid));
+        Node root = rootsByAid.get(key);
+        if (root == null) {
+            root = new Node();
+            rootsByAid.put(key, root);
+            aids.add(key);
+        }
+        return root;
+    }
+
+    static class Node {
+        private Node[] children;
+        private Template response;
+
+        private Node child(int b) {
+            if (children == null) {
+                children = new Node[256];
+            }
+            if (children[b] == null) {
+                children[b] = new Node();
+            }
+            return children[b];
+        }
+
+        private Template longestMatch(byte[] command) {
+            Template match = response;
+            Node node = this;
+            for (int i = 0; i < command.length && node.children != null; i++) {
+                node = node.children[command[i] & 0xFF];
+                if (node == null) {
+                    break;
+                }
+                if (node.response != null) {
+                    match = node.response;
+                }
+            }
+            return match;
+        }
+    }
+
+    private static class Template {
+        private static final int LITERAL = 0;
+        private static final int COMMAND = 1;
+        private static final int COUNTER = 2;
+
+        private final int[] kinds;
+        private final byte[][] literals;
+        private final int[] offsets;
+        private final int[] lengths;
+        private long counter = 0;
+
+        private Template(int[] kinds, byte[][] literals, int[] offsets, int[] lengths) {
+            this.kinds = kinds;
+            this.literals = literals;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        static Template parse(String template) throws JSONException {
+            List<Integer> kinds = new ArrayList<>();
+            List<byte[]> literals = new ArrayList<>();
+            List<int[]> arguments = new ArrayList<>();
+
+            int position = 0;
+            while (position < template.length()) {
+                int open = template.indexOf('{', position);
+                int literalEnd = open < 0 ? template.length() : open;
+                if (literalEnd > position) {
+                    kinds.add(LITERAL);
+                    literals.add(hex(template.substring(position, literalEnd)));
+                    arguments.add(new int[2]);
+                }
+                if (open < 0) {
+                    break;
+                }
+                int close = template.indexOf('}', open);
+                if (close < 0) {
+                    throw new JSONException("Unterminated placeholder in response " + template);
+                }
+                String[] parts = template.substring(open + 1, close).split(":");
+                try {
+                    if (parts[0].equals("cmd") && parts.length == 3) {
+                        kinds.add(COMMAND);
+                        arguments.add(new int[]{Integer.parseInt(parts[1]), Integer.parseInt(parts[2])});
+                    } else if (parts[0].equals("counter") && parts.length == 2) {
+                        kinds.add(COUNTER);
+                        arguments.add(new int[]{0, Integer.parseInt(parts[1])});
+                    } else {
+                        throw new JSONException("Unknown placeholder in response " + template);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new JSONException("Invalid placeholder in response " + template);
+                }
+                int[] placeholder = arguments.get(arguments.size() - 1);
+                if (placeholder[0] < 0 || placeholder[1] < 0) {
+                    throw new JSONException("Negative offset or length in response " + template);
+                }
+                literals.add(null);
+                position = close + 1;
+            }
+
+            int[] kindArray = new int[kinds.size()];
+            int[] offsetArray = new int[kinds.size()];
+            int[] lengthArray = new int[kinds.size()];
+            for (int i = 0; i < kindArray.length; i++) {
+                kindArray[i] = kinds.get(i);
+                offsetArray[i] = arguments.get(i)[0];
+                lengthArray[i] = kindArray[i] == LITERAL ? literals.get(i).length : arguments.get(i)[1];
+            }
+            return new Template(kindArray, literals.toArray(new byte[0][]), offsetArray, lengthArray);
+        }
+
+        byte[] render(byte[] command) {
+            int size = 0;
+            for (int length : lengths) {
+                size += length;
+            }
+            byte[] response = new byte[size];
+            int position = 0;
+            for (int i = 0; i < kinds.length; i++) {
+                switch (kinds[i]) {
+                    case LITERAL:
+                        System.arraycopy(literals[i], 0, response, position, lengths[i]);
+                        break;
+                    case COMMAND:
+                        // bytes beyond the end of a short command stay zero
+                        int available = Math.max(0, Math.min(lengths[i], command.length - offsets[i]));
+                        if (available > 0) {
+                            System.arraycopy(command, offsets[i], response, position, available);
+                        }
+                        break;
+                    case COUNTER:
+                        long value = counter++;
+                        for (int j = lengths[i] - 1; j >= 0; j--) {
+                            response[position + j] = (byte) value;
+                            value >>= 8;
+                        }
+                        break;
+                }
+                position += lengths[i];
+            }
+            return response;
+        }
+
+        private static byte[] hex(String hex) throws JSONException {
+            try {
+                return Util.hexToBytes(hex);
+            } catch (IllegalArgumentException e) {
+                throw new JSONException(e.getMessage());
+            }
+        }
+    }
+}
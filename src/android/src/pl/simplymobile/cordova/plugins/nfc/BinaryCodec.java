@@ -0,0 +1,97 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import java.util.Arrays;
+
+/**
+ * Base64 decoding and hex encoding for the transceive path.
+ *
+ * Decoding writes straight into an array from a {@link BufferPool}, hex encoding fills a per
+ * thread scratch buffer. What remains per exchange is the response array the platform
+ * allocates in transceive, which is recycled into the pool afterwards, and the encoded result
+ * handed to the bridge. This is also the hex encoder behind {@link Util#bytesToHex(byte[])}.
+ */
+final class BinaryCodec {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = i;
+        }
+        // URL safe alphabet
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+    }
+
+    private static final ThreadLocal<char[]> SCRATCH = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[512];
+        }
+    };
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Decodes base64 as sent by the Cordova bridge for an ArrayBuffer argument. Whitespace
+     * and padding are skipped.
+     *
+     * @return an array from the pool, to be released by the caller
+     */
+    static byte[] decodeBase64(String base64, BufferPool pool) {
+        int symbols = 0;
+        for (int i = 0; i < base64.length(); i++) {
+            char c = base64.charAt(i);
+            if (c < 128 && BASE64_VALUES[c] >= 0) {
+                symbols++;
+            } else if (c != '=' && !Character.isWhitespace(c)) {
+                throw new IllegalArgumentException("Invalid base64 character '" + c + "'");
+            }
+        }
+        if (symbols % 4 == 1) {
+            throw new IllegalArgumentException("Truncated base64 data");
+        }
+
+        byte[] bytes = pool.acquire(symbols * 3 / 4);
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+        for (int i = 0; i < base64.length(); i++) {
+            char c = base64.charAt(i);
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                continue;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                bytes[position++] = (byte) (bits >> bitCount);
+            }
+        }
+        return bytes;
+    }
+
+    static String encodeHex(byte[] bytes, int offset, int length) {
+        char[] chars = scratch(length * 2);
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            chars[i * 2] = HEX_DIGITS[(b >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars, 0, length * 2);
+    }
+
+    private static char[] scratch(int length) {
+        char[] chars = SCRATCH.get();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            SCRATCH.set(chars);
+        }
+        return chars;
+    }
+}
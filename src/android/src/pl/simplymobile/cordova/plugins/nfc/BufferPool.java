@@ -0,0 +1,65 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte arrays for the transceive path.
+ *
+ * Tag technologies take and return arrays of the exact frame length, so arrays are pooled by
+ * length. Commands and responses of a session usually repeat a handful of lengths, which
+ * makes the pool hit almost every time after the first exchanges.
+ */
+class BufferPool {
+
+    // covers short APDUs and most extended ones without pooling large arrays
+    private static final int MAX_POOLED_LENGTH = 4096;
+    private static final int MAX_PER_LENGTH = 4;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<byte[]>[] free = new ArrayDeque[MAX_POOLED_LENGTH + 1];
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @return an array of exactly the given length, its content is undefined
+     */
+    synchronized byte[] acquire(int length) {
+        if (length <= MAX_POOLED_LENGTH) {
+            ArrayDeque<byte[]> arrays = free[length];
+            if (arrays != null && !arrays.isEmpty()) {
+                hits++;
+                return arrays.pop();
+            }
+        }
+        misses++;
+        return new byte[length];
+    }
+
+    /**
+     * Returns an array to the pool, it must not be used by the caller afterwards.
+     */
+    synchronized void release(byte[] array) {
+        if (array == null || array.length > MAX_POOLED_LENGTH) {
+            return;
+        }
+        ArrayDeque<byte[]> arrays = free[array.length];
+        if (arrays == null) {
+            arrays = new ArrayDeque<>(MAX_PER_LENGTH);
+            free[array.length] = arrays;
+        }
+        if (arrays.size() < MAX_PER_LENGTH) {
+            arrays.push(array);
+        }
+    }
+
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("hits", hits);
+        json.put("misses", misses);
+        return json;
+    }
+}
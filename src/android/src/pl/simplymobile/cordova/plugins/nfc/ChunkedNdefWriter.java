@@ -0,0 +1,21 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.Tag;
+
+import java.io.IOException;
+
+/**
+ * Writes an NDEF message in tag addressable chunks and remembers which chunks are committed.
+ *
+ * When a write fails, calling {@link #write(Tag)} again with the re-presented tag continues
+ * with the first chunk that was not committed. The length of the message is written last, so
+ * a partially written tag reads as an empty NDEF message.
+ */
+interface ChunkedNdefWriter {
+
+    void write(Tag tag) throws IOException;
+
+    int getChunkCount();
+
+    int getCommittedChunks();
+}
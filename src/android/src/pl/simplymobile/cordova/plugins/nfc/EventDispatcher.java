@@ -0,0 +1,362 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.Tag;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Delivers NFC events to independent subscribers, the legacy channel being one of them.
+ *
+ * Each subscriber filters by event type, technology, MIME type and UID and chooses how much
+ * of the event it gets: the UID, a summary or the full event with the results of the native
+ * tag checks. The full event is only built when a matching subscriber asks for it, and each
+ * detail level is serialized once no matter how many subscribers receive it.
+ */
+class EventDispatcher {
+
+    static final String CHANNEL = "channel";
+
+    static final int DETAIL_UID = 0;
+    static final int DETAIL_SUMMARY = 1;
+    static final int DETAIL_FULL = 2;
+
+    private static final String[] DETAIL_NAMES = {"uid", "summary", "full"};
+
+    interface FullEvent {
+        JSONObject build() throws JSONException;
+    }
+
+    private final Map<String, Subscriber> registry = new LinkedHashMap<>();
+    // copy of the registry for dispatching without holding the lock
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+    private Filter channelFilter = new Filter(null, null, null, null, DETAIL_FULL);
+
+    synchronized void setChannel(CallbackContext callbackContext) {
+        put(new Subscriber(CHANNEL, callbackContext, channelFilter));
+    }
+
+    synchronized boolean hasChannel() {
+        return registry.containsKey(CHANNEL);
+    }
+
+    /**
+     * Narrows what the channel behind the document events receives, e.g. when the app moved to
+     * subscriptions.
+     */
+    synchronized void configureChannel(JSONObject options) throws JSONException {
+        channelFilter = Filter.fromJSON(options);
+        Subscriber channel = registry.get(CHANNEL);
+        if (channel != null) {
+            put(new Subscriber(CHANNEL, channel.callbackContext, channelFilter));
+        }
+    }
+
+    /**
+     * Sends an event that was postponed until the channel registered, through the current
+     * channel filter.
+     *
+     * @param fullResult the full event result returned by dispatch
+     * @return false when the channel filter rejects the event
+     */
+    synchronized boolean replayToChannel(String type, Tag tag, NdefMessage message, PluginResult fullResult) throws JSONException {
+        Subscriber channel = registry.get(CHANNEL);
+        Records records = new Records(message);
+        if (channel == null || !channel.filter.matches(type, tag, records)) {
+            return false;
+        }
+        int detail = tag == null ? DETAIL_FULL : channel.filter.detail;
+        if (detail == DETAIL_FULL) {
+            channel.callbackContext.sendPluginResult(fullResult);
+        } else {
+            channel.callbackContext.sendPluginResult(result(detail == DETAIL_UID ? uidEvent(type, tag) : summaryEvent(type, tag, records)));
+        }
+        return true;
+    }
+
+    /**
+     * Forgets all subscribers and the channel filter, the callbacks of a reloaded page are gone.
+     */
+    synchronized void reset() {
+        registry.clear();
+        subscribers = new Subscriber[0];
+        channelFilter = new Filter(null, null, null, null, DETAIL_FULL);
+    }
+
+    /**
+     * @param options {types, techs, mimeTypes, uids, detail ('uid', 'summary' or 'full')}
+     */
+    synchronized void subscribe(String id, CallbackContext callbackContext, JSONObject options) throws JSONException {
+        if (CHANNEL.equals(id)) {
+            throw new JSONException("Subscription id " + id + " is reserved");
+        }
+        put(new Subscriber(id, callbackContext, Filter.fromJSON(options)));
+    }
+
+    synchronized boolean unsubscribe(String id) {
+        Subscriber removed = registry.remove(id);
+        if (removed == null) {
+            return false;
+        }
+        subscribers = registry.values().toArray(new Subscriber[0]);
+        // a result without keepCallback releases the callback in JavaScript
+        removed.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+        return true;
+    }
+
+    /**
+     * @return true when a subscriber takes events of this type that do not come from a tag
+     */
+    boolean wants(String type) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.filter.matches(type, null, new Records(null))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param includeChannel false for events the channel never carried, e.g. reader mode tags
+     * @param forceFull build the full event even when no subscriber asks for it
+     * @return the full event result when it was built, otherwise null
+     */
+    PluginResult dispatch(String type, Tag tag, NdefMessage message, boolean includeChannel, boolean forceFull,
+                          FullEvent fullEvent) throws JSONException {
+        Subscriber[] current = subscribers;
+        Records records = new Records(message);
+        boolean[] matching = new boolean[current.length];
+        int richest = forceFull ? DETAIL_FULL : -1;
+        for (int i = 0; i < current.length; i++) {
+            Subscriber subscriber = current[i];
+            if (!includeChannel && CHANNEL.equals(subscriber.id)) {
+                continue;
+            }
+            if (subscriber.filter.matches(type, tag, records)) {
+                matching[i] = true;
+                // events without a tag are small, everyone gets them in full
+                richest = Math.max(richest, tag == null ? DETAIL_FULL : subscriber.filter.detail);
+            }
+        }
+        if (richest < 0) {
+            return null;
+        }
+
+        PluginResult[] results = new PluginResult[DETAIL_NAMES.length];
+        if (richest == DETAIL_FULL) {
+            results[DETAIL_FULL] = result(fullEvent.build());
+        }
+        for (int i = 0; i < current.length; i++) {
+            if (!matching[i]) {
+                continue;
+            }
+            int detail = tag == null ? DETAIL_FULL : current[i].filter.detail;
+            if (results[detail] == null) {
+                results[detail] = result(detail == DETAIL_UID ? uidEvent(type, tag) : summaryEvent(type, tag, records));
+            }
+            current[i].callbackContext.sendPluginResult(results[detail]);
+        }
+        return results[DETAIL_FULL];
+    }
+
+    private void put(Subscriber subscriber) {
+        registry.put(subscriber.id, subscriber);
+        subscribers = registry.values().toArray(new Subscriber[0]);
+    }
+
+    private static PluginResult result(JSONObject event) {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+        result.setKeepCallback(true);
+        return result;
+    }
+
+    private static JSONObject uidEvent(String type, Tag tag) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("type", type);
+        event.put("uid", Util.bytesToHex(tag.getId()));
+        return event;
+    }
+
+    private static JSONObject summaryEvent(String type, Tag tag, Records records) throws JSONException {
+        JSONObject event = uidEvent(type, tag);
+        JSONArray techTypes = new JSONArray();
+        for (String tech : tag.getTechList()) {
+            techTypes.put(tech);
+        }
+        event.put("techTypes", techTypes);
+        NdefRecord[] expanded = records.get();
+        if (expanded != null) {
+            event.put("records", expanded.length);
+            for (NdefRecord record : expanded) {
+                String mimeType = mimeTypeOf(record);
+                if (mimeType != null) {
+                    event.put("mimeType", mimeType);
+                    break;
+                }
+            }
+        }
+        return event;
+    }
+
+    private static String mimeTypeOf(NdefRecord record) {
+        if (record.getTnf() != NdefRecord.TNF_MIME_MEDIA) {
+            return null;
+        }
+        return new String(record.getType(), StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Records of the event message, compressed records are expanded once on first use.
+     */
+    private static class Records {
+        private final NdefMessage message;
+        private NdefRecord[] records;
+
+        Records(NdefMessage message) {
+            this.message = message;
+        }
+
+        NdefRecord[] get() {
+            if (records == null && message != null) {
+                records = Util.expandRecords(message);
+            }
+            return records;
+        }
+    }
+
+    private static class Subscriber {
+        final String id;
+        final CallbackContext callbackContext;
+        final Filter filter;
+
+        Subscriber(String id, CallbackContext callbackContext, Filter filter) {
+            this.id = id;
+            this.callbackContext = callbackContext;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Null sets accept everything. Technologies match by simple or full class name.
+     */
+    private static class Filter {
+        final Set<String> types;
+        final Set<String> techs;
+        final Set<String> mimeTypes;
+        final Set<String> uids;
+        final int detail;
+
+        Filter(Set<String> types, Set<String> techs, Set<String> mimeTypes, Set<String> uids, int detail) {
+            this.types = types;
+            this.techs = techs;
+            this.mimeTypes = mimeTypes;
+            this.uids = uids;
+            this.detail = detail;
+        }
+
+        static Filter fromJSON(JSONObject options) throws JSONException {
+            String detailName = options.optString("detail", "full");
+            int detail = -1;
+            for (int i = 0; i < DETAIL_NAMES.length; i++) {
+                if (DETAIL_NAMES[i].equals(detailName)) {
+                    detail = i;
+                }
+            }
+            if (detail < 0) {
+                throw new JSONException("Unknown detail " + detailName + ", expecting uid, summary or full");
+            }
+            Set<String> techs = set(options, "techs", false);
+            if (techs != null) {
+                Set<String> simpleNames = new HashSet<>();
+                for (String tech : techs) {
+                    simpleNames.add(simpleName(tech));
+                }
+                techs = simpleNames;
+            }
+            Set<String> uids = set(options, "uids", true);
+            if (uids != null) {
+                Set<String> normalized = new HashSet<>();
+                for (String uid : uids) {
+                    try {
+                        normalized.add(Util.bytesToHex(Util.hexToBytes(uid)));
+                    } catch (IllegalArgumentException e) {
+                        throw new JSONException(e.getMessage());
+                    }
+                }
+                uids = normalized;
+            }
+            return new Filter(set(options, "types", false), techs, set(options, "mimeTypes", true), uids, detail);
+        }
+
+        boolean matches(String type, Tag tag, Records records) {
+            if (types != null && !types.contains(type)) {
+                return false;
+            }
+            if (techs == null && mimeTypes == null && uids == null) {
+                return true;
+            }
+            if (tag == null) {
+                return false;
+            }
+            if (uids != null && !uids.contains(Util.bytesToHex(tag.getId()))) {
+                return false;
+            }
+            if (techs != null && !hasTech(tag)) {
+                return false;
+            }
+            return mimeTypes == null || hasMimeType(records);
+        }
+
+        private boolean hasTech(Tag tag) {
+            for (String tech : tag.getTechList()) {
+                if (techs.contains(simpleName(tech))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasMimeType(Records records) {
+            NdefRecord[] expanded = records.get();
+            if (expanded == null) {
+                return false;
+            }
+            for (NdefRecord record : expanded) {
+                String mimeType = mimeTypeOf(record);
+                if (mimeType != null && mimeTypes.contains(mimeType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String simpleName(String tech) {
+            return tech.substring(tech.lastIndexOf('.') + 1);
+        }
+
+        private static Set<String> set(JSONObject options, String name, boolean lowerCase) throws JSONException {
+            JSONArray array = options.optJSONArray(name);
+            if (array == null) {
+                return null;
+            }
+            Set<String> set = new HashSet<>();
+            for (int i = 0; i < array.length(); i++) {
+                String value = array.getString(i);
+                set.add(lowerCase ? value.toLowerCase(Locale.ROOT) : value);
+            }
+            return set;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.MifareClassic;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads MIFARE Classic sectors with a key dictionary.
+ *
+ * The key that authenticated a sector is remembered per UID and sector, and per sector across
+ * cards, so the next read tries it first instead of walking the dictionary again.
+ */
+class MifareClassicReader {
+
+    private static final String TAG = "NfcPlugin";
+
+    private static final int MAX_CACHED_SECTOR_KEYS = 4096;
+
+    private final Map<String, SectorKey> cardKeys = new LinkedHashMap<String, SectorKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SectorKey> eldest) {
+            return size() > MAX_CACHED_SECTOR_KEYS;
+        }
+    };
+    private final Map<Integer, SectorKey> sectorKeys = new LinkedHashMap<>();
+
+    /**
+     * @param keys dictionary of 6 byte keys
+     * @param useKeyA try the dictionary as key A
+     * @param useKeyB try the dictionary as key B
+     * @return {id, sectors: [{sector, keyType, key, data} or {sector, error}]}
+     */
+    JSONObject readSectors(MifareClassic mifareClassic, int[] sectors, List<byte[]> keys,
+                           boolean useKeyA, boolean useKeyB) throws IOException, JSONException {
+        String uid = Util.bytesToHex(mifareClassic.getTag().getId());
+        JSONArray results = new JSONArray();
+
+        for (int sector : sectors) {
+            JSONObject result = new JSONObject();
+            result.put("sector", sector);
+
+            if (sector < 0 || sector >= mifareClassic.getSectorCount()) {
+                result.put("error", "Sector out of range");
+                results.put(result);
+                continue;
+            }
+
+            SectorKey sectorKey = authenticate(mifareClassic, uid, sector, keys, useKeyA, useKeyB);
+            if (sectorKey == null) {
+                result.put("error", "Authentication failed");
+                results.put(result);
+                continue;
+            }
+
+            int firstBlock = mifareClassic.sectorToBlock(sector);
+            int blockCount = mifareClassic.getBlockCountInSector(sector);
+            byte[] data = new byte[blockCount * MifareClassic.BLOCK_SIZE];
+            try {
+                for (int i = 0; i < blockCount; i++) {
+                    byte[] block = mifareClassic.readBlock(firstBlock + i);
+                    System.arraycopy(block, 0, data, i * MifareClassic.BLOCK_SIZE, MifareClassic.BLOCK_SIZE);
+                }
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, "Reading sector " + sector + " failed: " + e.getMessage());
+                result.put("error", "Read failed: " + e.getMessage());
+                results.put(result);
+                continue;
+            }
+
+            result.put("keyType", sectorKey.keyB ? "B" : "A");
+            result.put("key", Util.bytesToHex(sectorKey.key));
+            result.put("data", Util.bytesToHex(data));
+            results.put(result);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("id", uid);
+        json.put("sectors", results);
+        return json;
+    }
+
+    private SectorKey authenticate(MifareClassic mifareClassic, String uid, int sector, List<byte[]> keys,
+                                   boolean useKeyA, boolean useKeyB) throws IOException {
+        for (SectorKey candidate : candidates(uid, sector, keys, useKeyA, useKeyB)) {
+            try {
+                boolean authenticated = candidate.keyB
+                        ? mifareClassic.authenticateSectorWithKeyB(sector, candidate.key)
+                        : mifareClassic.authenticateSectorWithKeyA(sector, candidate.key);
+                if (authenticated) {
+                    remember(uid, sector, candidate);
+                    return candidate;
+                }
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, "Authentication of sector " + sector + " failed: " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            cardKeys.remove(uid + "/" + sector);
+        }
+        return null;
+    }
+
+    /**
+     * The key that last worked for this card, then the one that last worked for this sector on
+     * any card, then the dictionary in the given order.
+     */
+    private synchronized List<SectorKey> candidates(String uid, int sector, List<byte[]> keys,
+                                                    boolean useKeyA, boolean useKeyB) {
+        List<SectorKey> candidates = new ArrayList<>();
+        addCandidate(candidates, cardKeys.get(uid + "/" + sector), useKeyA, useKeyB);
+        addCandidate(candidates, sectorKeys.get(sector), useKeyA, useKeyB);
+        for (byte[] key : keys) {
+            addCandidate(candidates, new SectorKey(key, false), useKeyA, useKeyB);
+            addCandidate(candidates, new SectorKey(key, true), useKeyA, useKeyB);
+        }
+        return candidates;
+    }
+
+    private static void addCandidate(List<SectorKey> candidates, SectorKey candidate, boolean useKeyA, boolean useKeyB) {
+        if (candidate == null || (candidate.keyB ? !useKeyB : !useKeyA)) {
+            return;
+        }
+        for (SectorKey existing : candidates) {
+            if (existing.equals(candidate)) {
+                return;
+            }
+        }
+        candidates.add(candidate);
+    }
+
+    private synchronized void remember(String uid, int sector, SectorKey sectorKey) {
+        cardKeys.put(uid + "/" + sector, sectorKey);
+        sectorKeys.put(sector, sectorKey);
+    }
+
+    private static class SectorKey {
+        final byte[] key;
+        final boolean keyB;
+
+        SectorKey(byte[] key, boolean keyB) {
+            this.key = key;
+            this.keyB = keyB;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SectorKey)) {
+                return false;
+            }
+            SectorKey other = (SectorKey) o;
+            return keyB == other.keyB && Arrays.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(key) + (keyB ? 1 : 0);
+        }
+    }
+}
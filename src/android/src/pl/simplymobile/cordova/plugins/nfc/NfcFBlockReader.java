@@ -0,0 +1,322 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.NfcF;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * FeliCa Read Without Encryption on top of {@link NfcF}.
+ *
+ * The blocks of all requested services are packed into as few commands as the card allows:
+ * at most 16 services per command, a configurable number of blocks and no more than fits
+ * into a frame. When the card reports an illegal number of services or blocks, the batch
+ * limit is halved and the batch is sent again.
+ */
+class NfcFBlockReader {
+
+    private static final String TAG = "NfcPlugin";
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final byte CMD_POLLING = 0x00;
+    private static final byte RES_POLLING = 0x01;
+    private static final byte CMD_READ_WITHOUT_ENCRYPTION = 0x06;
+    private static final byte RES_READ_WITHOUT_ENCRYPTION = 0x07;
+
+    private static final int STATUS_ILLEGAL_SERVICE_COUNT = 0xA1;
+    private static final int STATUS_ILLEGAL_BLOCK_COUNT = 0xA2;
+
+    // the service index in a block list element has four bits
+    private static final int MAX_SERVICES_PER_COMMAND = 16;
+    // 15 blocks fill a response frame of 255 bytes
+    private static final int MAX_BLOCKS_PER_COMMAND = 15;
+    // length, command code and IDm
+    private static final int HEADER_LENGTH = 10;
+    // length, response code, IDm, status flags and number of blocks
+    private static final int RESPONSE_HEADER_LENGTH = 13;
+    private static final int PMM_READ_TIMING = 5;
+    // one FeliCa time unit is 256 * 16 / 13.56 MHz, about 0.302 ms
+    private static final double TIME_UNIT_MS = 256.0 * 16 / 13560;
+
+    private final NfcF nfcF;
+    private final int retries;
+
+    private byte[] idm;
+    private byte[] pmm;
+    private int maxServices = MAX_SERVICES_PER_COMMAND;
+    private int maxBlocks = MAX_BLOCKS_PER_COMMAND;
+
+    NfcFBlockReader(NfcF nfcF, int maxBlocks, int retries) {
+        this.nfcF = nfcF;
+        this.idm = nfcF.getTag().getId();
+        this.pmm = nfcF.getManufacturer();
+        if (maxBlocks > 0) {
+            this.maxBlocks = Math.min(maxBlocks, MAX_BLOCKS_PER_COMMAND);
+        }
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * Polls for a system code so the following commands address the IDm of that system.
+     * A card with several systems answers with a different IDm for each of them.
+     */
+    void selectSystem(int systemCode) throws IOException {
+        byte[] command = {6, CMD_POLLING, (byte) (systemCode >> 8), (byte) systemCode, 0x00, 0x00};
+        byte[] response = nfcF.transceive(command);
+        if (response == null || response.length < 18 || response[1] != RES_POLLING) {
+            throw new IOException("Card did not answer the polling for system code " + hex(systemCode));
+        }
+        idm = new byte[8];
+        pmm = new byte[8];
+        System.arraycopy(response, 2, idm, 0, 8);
+        System.arraycopy(response, 10, pmm, 0, 8);
+    }
+
+    /**
+     * @param serviceCodes service codes, e.g. 0x090F
+     * @param blocks block numbers to read for each service
+     * @return {idm, pmm, services: [{code, blocks, data}]}, data is the hex of all blocks
+     */
+    JSONObject read(int[] serviceCodes, int[][] blocks) throws IOException, JSONException {
+        int total = 0;
+        for (int[] serviceBlocks : blocks) {
+            total += serviceBlocks.length;
+        }
+        int[] elementService = new int[total];
+        int[] elementBlock = new int[total];
+        int position = 0;
+        for (int service = 0; service < serviceCodes.length; service++) {
+            for (int block : blocks[service]) {
+                if (block < 0 || block > 0xFFFF) {
+                    throw new IOException("Invalid block number " + block + " for service " + hex(serviceCodes[service]));
+                }
+                elementService[position] = service;
+                elementBlock[position] = block;
+                position++;
+            }
+        }
+
+        ByteArrayOutputStream[] data = new ByteArrayOutputStream[serviceCodes.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new ByteArrayOutputStream(blocks[i].length * BLOCK_SIZE);
+        }
+
+        // the PMm timeouts only apply to these reads, not to later exchanges of the connection
+        int previousTimeout = nfcF.getTimeout();
+        try {
+            int start = 0;
+            while (start < total) {
+                int end = batchEnd(serviceCodes, elementService, elementBlock, start);
+                byte[] blockData;
+                try {
+                    blockData = readBatch(serviceCodes, elementService, elementBlock, start, end);
+                } catch (LimitExceededException e) {
+                    if (end - start == 1) {
+                        throw new IOException(e.getMessage());
+                    }
+                    Log.w(TAG, e.getMessage() + ", retrying with smaller batches");
+                    continue;
+                }
+                for (int i = start; i < end; i++) {
+                    data[elementService[i]].write(blockData, (i - start) * BLOCK_SIZE, BLOCK_SIZE);
+                }
+                start = end;
+            }
+        } finally {
+            nfcF.setTimeout(previousTimeout);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("idm", Util.bytesToHex(idm));
+        if (pmm != null) {
+            result.put("pmm", Util.bytesToHex(pmm));
+        }
+        JSONArray services = new JSONArray();
+        for (int service = 0; service < serviceCodes.length; service++) {
+            JSONObject json = new JSONObject();
+            json.put("code", hex(serviceCodes[service]));
+            json.put("blocks", blocks[service].length);
+            json.put("data", Util.bytesToHex(data[service].toByteArray()));
+            services.put(json);
+        }
+        result.put("services", services);
+        return result;
+    }
+
+    /**
+     * End of the batch starting at start, bounded by the service and block limits and the
+     * frame size of the command and of the response.
+     */
+    private int batchEnd(int[] serviceCodes, int[] elementService, int[] elementBlock, int start) {
+        int frameLimit = Math.min(nfcF.getMaxTransceiveLength(), 0xFF);
+        int responseBlocks = Math.max(1, (frameLimit - RESPONSE_HEADER_LENGTH) / BLOCK_SIZE);
+        int blockLimit = Math.min(maxBlocks, responseBlocks);
+
+        int services = 0;
+        int length = HEADER_LENGTH + 2;
+        int end = start;
+        int lastService = -1;
+        while (end < elementService.length && end - start < blockLimit) {
+            boolean newService = elementService[end] != lastService && !containsService(elementService, start, end, elementService[end]);
+            int added = elementLength(elementBlock[end]) + (newService ? 2 : 0);
+            if (end > start && (length + added > frameLimit || (newService && services == maxServices))) {
+                break;
+            }
+            if (newService) {
+                services++;
+            }
+            length += added;
+            lastService = elementService[end];
+            end++;
+        }
+        return end;
+    }
+
+    private byte[] readBatch(int[] serviceCodes, int[] elementService, int[] elementBlock, int start, int end) throws IOException {
+        // service list of the batch in order of first use, the block list refers to it by index
+        int[] batchServices = new int[MAX_SERVICES_PER_COMMAND];
+        int[] indexOf = new int[serviceCodes.length];
+        int serviceCount = 0;
+        int blockListLength = 0;
+        for (int i = start; i < end; i++) {
+            int service = elementService[i];
+            if (!containsService(elementService, start, i, service)) {
+                indexOf[service] = serviceCount;
+                batchServices[serviceCount++] = service;
+            }
+            blockListLength += elementLength(elementBlock[i]);
+        }
+
+        int blockCount = end - start;
+        byte[] command = new byte[HEADER_LENGTH + 1 + serviceCount * 2 + 1 + blockListLength];
+        command[0] = (byte) command.length;
+        command[1] = CMD_READ_WITHOUT_ENCRYPTION;
+        System.arraycopy(idm, 0, command, 2, 8);
+        int position = HEADER_LENGTH;
+        command[position++] = (byte) serviceCount;
+        for (int i = 0; i < serviceCount; i++) {
+            int code = serviceCodes[batchServices[i]];
+            command[position++] = (byte) code;
+            command[position++] = (byte) (code >> 8);
+        }
+        command[position++] = (byte) blockCount;
+        for (int i = start; i < end; i++) {
+            int index = indexOf[elementService[i]];
+            int block = elementBlock[i];
+            if (elementLength(block) == 2) {
+                command[position++] = (byte) (0x80 | index);
+                command[position++] = (byte) block;
+            } else {
+                command[position++] = (byte) index;
+                command[position++] = (byte) block;
+                command[position++] = (byte) (block >> 8);
+            }
+        }
+
+        String description = "Read Without Encryption of " + blockCount + " blocks from service "
+                + hex(serviceCodes[elementService[start]]) + " block " + elementBlock[start];
+        applyTimeout(blockCount);
+        byte[] response = withRetries(() -> nfcF.transceive(command));
+        return blockData(response, blockCount, serviceCount, description);
+    }
+
+    private byte[] blockData(byte[] response, int blockCount, int serviceCount, String description) throws IOException {
+        if (response == null || response.length < RESPONSE_HEADER_LENGTH - 1 || response[1] != RES_READ_WITHOUT_ENCRYPTION) {
+            throw new IOException(description + " returned an invalid response");
+        }
+        int status1 = response[10] & 0xFF;
+        int status2 = response[11] & 0xFF;
+        if (status1 != 0x00) {
+            if (status2 == STATUS_ILLEGAL_SERVICE_COUNT && serviceCount > 1) {
+                maxServices = Math.max(1, Math.min(maxServices, serviceCount) / 2);
+                throw new LimitExceededException(description + " exceeds the service limit of the card");
+            }
+            if (status2 == STATUS_ILLEGAL_BLOCK_COUNT && blockCount > 1) {
+                maxBlocks = Math.max(1, Math.min(maxBlocks, blockCount) / 2);
+                throw new LimitExceededException(description + " exceeds the block limit of the card");
+            }
+            throw new IOException(description + " failed with status flags "
+                    + Util.bytesToHex(new byte[]{(byte) status1, (byte) status2}));
+        }
+        int length = blockCount * BLOCK_SIZE;
+        if (response.length < RESPONSE_HEADER_LENGTH + length || (response[12] & 0xFF) != blockCount) {
+            throw new IOException(description + " returned " + (response.length < RESPONSE_HEADER_LENGTH ? 0 : response[12] & 0xFF)
+                    + " blocks, expected " + blockCount);
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(response, RESPONSE_HEADER_LENGTH, data, 0, length);
+        return data;
+    }
+
+    /**
+     * Raises the transceive timeout to the maximum response time the card announces in its
+     * PMm for a read of the given number of blocks. read restores the previous timeout.
+     */
+    private void applyTimeout(int blockCount) {
+        if (pmm == null || pmm.length < 8) {
+            return;
+        }
+        int timing = pmm[PMM_READ_TIMING] & 0xFF;
+        int a = timing & 0x07;
+        int b = (timing >> 3) & 0x07;
+        int e = (timing >> 6) & 0x03;
+        // T x [(B + 1) x n + (A + 1)] x 4^E
+        double timeout = TIME_UNIT_MS * ((b + 1) * blockCount + (a + 1)) * (1 << (2 * e));
+        int timeoutMs = (int) Math.ceil(timeout) + 10;
+        if (timeoutMs > nfcF.getTimeout()) {
+            nfcF.setTimeout(timeoutMs);
+        }
+    }
+
+    private static boolean containsService(int[] elementService, int from, int to, int service) {
+        for (int i = from; i < to; i++) {
+            if (elementService[i] == service) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int elementLength(int block) {
+        return block <= 0xFF ? 2 : 3;
+    }
+
+    private static String hex(int code) {
+        return Util.bytesToHex(new byte[]{(byte) (code >> 8), (byte) code});
+    }
+
+    private byte[] withRetries(Exchange exchange) throws IOException {
+        int attempt = 0;
+        while (true) {
+            try {
+                return exchange.run();
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt++ >= retries) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private interface Exchange {
+        byte[] run() throws IOException;
+    }
+
+    /**
+     * The card refused a batch because it holds more services or blocks than it supports.
+     */
+    private static class LimitExceededException extends IOException {
+        LimitExceededException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.nfc.cardemulation.HostApduService;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Host Card Emulation service answering APDUs from a registered {@link ApduRoutingTable}.
+ *
+ * SELECT by AID and every command with a matching route are answered here, on the service
+ * thread. Other commands are handed to the {@link Listener}, i.e. the plugin, which forwards
+ * them to JavaScript; the answer comes back through {@link #sendResponse(byte[])}.
+ *
+ * The routing table is persisted so the service can answer while the app is not running.
+ */
+public class NfcHceService extends HostApduService {
+
+    private static final String TAG = "NfcPlugin";
+
+    private static final String PREFERENCES = "NfcPluginHce";
+    private static final String ROUTES = "routes";
+
+    private static final byte[] SW_OK = {(byte) 0x90, 0x00};
+    private static final byte[] SW_FILE_NOT_FOUND = {0x6A, (byte) 0x82};
+    private static final byte[] SW_INS_NOT_SUPPORTED = {0x6D, 0x00};
+
+    interface Listener {
+        /**
+         * @return true when the command was forwarded and will be answered with sendResponse
+         */
+        boolean onUnmatchedCommand(String aid, byte[] command);
+
+        void onDeactivated(int reason);
+    }
+
+    private static volatile ApduRoutingTable routingTable;
+    private static volatile Listener listener;
+    private static volatile NfcHceService activeService;
+
+    // a forwarded command is answered at most once, and not after the next command or deactivation
+    private final AtomicBoolean awaitingResponse = new AtomicBoolean(false);
+
+    private byte[] selectedAid;
+    private ApduRoutingTable.Node selectedRoot;
+
+    static ApduRoutingTable setRoutes(Context context, JSONObject routes) throws JSONException {
+        ApduRoutingTable table = ApduRoutingTable.compile(routes);
+        routingTable = table;
+        preferences(context).edit().putString(ROUTES, routes.toString()).apply();
+        return table;
+    }
+
+    static void setListener(Listener hceListener) {
+        listener = hceListener;
+    }
+
+    /**
+     * Answers the command that was last handed to the listener.
+     *
+     * @return false when no forwarded command is waiting for a response
+     */
+    static boolean sendResponse(byte[] response) {
+        NfcHceService service = activeService;
+        if (service == null || !service.awaitingResponse.compareAndSet(true, false)) {
+            return false;
+        }
+        service.sendResponseApdu(response);
+        return true;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        activeService = this;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (activeService == this) {
+            activeService = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public byte[] processCommandApdu(byte[] command, Bundle extras) {
+        awaitingResponse.set(false);
+        ApduRoutingTable table = routingTable(this);
+
+        boolean select = isSelectByAid(command);
+        if (select) {
+            selectedAid = new byte[command[4] & 0xFF];
+            System.arraycopy(command, 5, selectedAid, 0, selectedAid.length);
+            selectedRoot = table != null ? table.rootFor(selectedAid) : null;
+        }
+
+        if (table != null) {
+            byte[] response = table.respond(selectedRoot, command);
+            if (response != null) {
+                return response;
+            }
+        }
+
+        if (select) {
+            return selectedRoot != null ? SW_OK : SW_FILE_NOT_FOUND;
+        }
+
+        Listener current = listener;
+        // set before forwarding, the response may arrive before the listener returns
+        awaitingResponse.set(true);
+        if (current != null && current.onUnmatchedCommand(selectedAid != null ? Util.bytesToHex(selectedAid) : null, command)) {
+            return null;
+        }
+        awaitingResponse.set(false);
+        return SW_INS_NOT_SUPPORTED;
+    }
+
+    @Override
+    public void onDeactivated(int reason) {
+        awaitingResponse.set(false);
+        selectedAid = null;
+        selectedRoot = null;
+        Listener current = listener;
+        if (current != null) {
+            current.onDeactivated(reason);
+        }
+    }
+
+    private static boolean isSelectByAid(byte[] command) {
+        return command.length >= 5
+                && command[0] == 0x00 && command[1] == (byte) 0xA4 && command[2] == 0x04
+                && command.length >= 5 + (command[4] & 0xFF);
+    }
+
+    private static ApduRoutingTable routingTable(Context context) {
+        ApduRoutingTable table = routingTable;
+        if (table == null) {
+            String routes = preferences(context).getString(ROUTES, null);
+            if (routes != null) {
+                try {
+                    table = ApduRoutingTable.compile(new JSONObject(routes));
+                    routingTable = table;
+                } catch (JSONException e) {
+                    Log.e(TAG, "Stored HCE routes are invalid", e);
+                }
+            }
+        }
+        return table;
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
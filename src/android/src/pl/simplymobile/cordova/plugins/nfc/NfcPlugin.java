@@ -20,9 +20,11 @@ import org.json.JSONObject;
 
 import android.app.Activity;
 import android.app.PendingIntent;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentFilter.MalformedMimeTypeException;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
@@ -31,8 +33,12 @@ import android.nfc.NfcAdapter;
 import android.nfc.NfcEvent;
 import android.nfc.Tag;
 import android.nfc.TagLostException;
+import android.nfc.cardemulation.CardEmulation;
 import android.nfc.tech.Ndef;
+import android.nfc.tech.MifareClassic;
 import android.nfc.tech.NdefFormatable;
+import android.nfc.tech.NfcF;
+import android.nfc.tech.NfcV;
 import android.nfc.tech.TagTechnology;
 import android.os.Bundle;
 import android.os.Parcelable;
@@ -61,6 +67,9 @@ public class NfcPlugin extends CordovaPlugin {
     private static final String NDEF_MIME = "ndef-mime";
     private static final String NDEF_FORMATABLE = "ndef-formatable";
     private static final String TAG_DEFAULT = "tag";
+    private static final String HCE_APDU = "hce-apdu";
+    private static final String HCE_DEACTIVATED = "hce-deactivated";
+    private static final String READER_MODE_TAG = "reader-mode";
 
     private static final String READER_MODE = "readerMode";
     private static final String DISABLE_READER_MODE = "disableReaderMode";
@@ -68,8 +77,33 @@ public class NfcPlugin extends CordovaPlugin {
     private static final String CONNECT = "connect";
     private static final String CLOSE = "close";
     private static final String TRANSCEIVE = "transceive";
+    private static final String READ_NFCV_BLOCKS = "readNfcVBlocks";
+    private static final String WRITE_NFCV_BLOCKS = "writeNfcVBlocks";
+    private static final String READ_SECTORS = "readSectors";
+    private static final String READ_NFCF_BLOCKS = "readNfcFBlocks";
+    private static final String SET_ADAPTIVE_TIMEOUTS = "setAdaptiveTimeouts";
+    private static final String GET_METRICS = "getMetrics";
+    private static final String REGISTER_HCE_ROUTES = "registerHceRoutes";
+    private static final String HCE_RESPOND = "hceRespond";
+    private static final String CONFIGURE_SUN = "configureSun";
+    private static final String CONFIGURE_FINGERPRINT = "configureFingerprint";
+    private static final String CONFIGURE_ORIGINALITY = "configureOriginality";
+    private static final String SUBSCRIBE = "subscribe";
+    private static final String UNSUBSCRIBE = "unsubscribe";
+    private static final String CONFIGURE_CHANNEL = "configureChannel";
     private TagTechnology tagTechnology = null;
     private Class<?> tagTechnologyClass;
+    private Method transceiveMethod;
+    private final BufferPool bufferPool = new BufferPool();
+    private final MifareClassicReader mifareClassicReader = new MifareClassicReader();
+    private final AdaptiveTimeouts adaptiveTimeouts = new AdaptiveTimeouts();
+    private final SunVerifier sunVerifier = new SunVerifier();
+    private final TagFingerprinter tagFingerprinter = new TagFingerprinter();
+    private final OriginalityVerifier originalityVerifier = new OriginalityVerifier();
+    private String timeoutKey;
+    private boolean learnedTimeout = false;
+    private int appliedTimeout = -1;
+    private int platformTimeout = -1;
 
     private static final String CHANNEL = "channel";
 
@@ -81,26 +115,41 @@ public class NfcPlugin extends CordovaPlugin {
     private static final String PING = "ping";
 
     private static final String TAG = "NfcPlugin";
+
+    // config.xml preference deferring all adapter work until NFC is actually used
+    private static final String PREFERENCE_LAZY_INIT = "NfcLazyInit";
+    private boolean lazyInit = false;
+    private boolean nfcStarted = false;
+    private StartupMetrics startupMetrics = new StartupMetrics(false);
     private final List<IntentFilter> intentFilters = new ArrayList<>();
     private final ArrayList<String[]> techLists = new ArrayList<>();
 
     private NdefMessage p2pMessage = null;
     private PendingIntent pendingIntent = null;
 
-    private Intent savedIntent = null;
+    // the last discovered tag, set synchronously by onNewIntent, the launch intent and reader mode
+    private volatile Tag lastTag = null;
+    private final TagPresence tagPresence = new TagPresence();
+    private final TagIntake tagIntake = new TagIntake(this::parseDiscovery);
 
     private CallbackContext readerModeCallback;
-    private CallbackContext channelCallback;
+    private final EventDispatcher eventDispatcher = new EventDispatcher();
 
     private PostponedPluginResult postponedPluginResult = null;
 
     class PostponedPluginResult {
         private Date moment;
         private PluginResult pluginResult;
+        private String type;
+        private Tag tag;
+        private NdefMessage message;
 
-        PostponedPluginResult(Date moment, PluginResult pluginResult) {
+        PostponedPluginResult(Date moment, PluginResult pluginResult, String type, Tag tag, NdefMessage message) {
             this.moment = moment;
             this.pluginResult = pluginResult;
+            this.type = type;
+            this.tag = tag;
+            this.message = message;
         }
 
         boolean isValid() {
@@ -108,6 +157,28 @@ public class NfcPlugin extends CordovaPlugin {
         }
     }
 
+    @Override
+    protected void pluginInitialize() {
+        long start = System.nanoTime();
+        lazyInit = preferences.getBoolean(PREFERENCE_LAZY_INIT, false);
+        startupMetrics = new StartupMetrics(lazyInit);
+        NfcHceService.setListener(hceListener);
+        startupMetrics.record("pluginInitialize", start);
+    }
+
+    @Override
+    public void onReset() {
+        // subscription ids restart with the page, the old callbacks are gone
+        eventDispatcher.reset();
+        super.onReset();
+    }
+
+    @Override
+    public void onDestroy() {
+        NfcHceService.setListener(null);
+        super.onDestroy();
+    }
+
     @Override
     public boolean execute(String action, JSONArray data, CallbackContext callbackContext) throws JSONException {
         Log.d(TAG, "execute " + action);
@@ -118,13 +189,16 @@ public class NfcPlugin extends CordovaPlugin {
         }
 
         if (action.equalsIgnoreCase(CHANNEL)) {
-            channelCallback = callbackContext;
+            eventDispatcher.setChannel(callbackContext);
             if (postponedPluginResult != null) {
                 Log.i(TAG, "Postponed plugin result available");
 
                 if (postponedPluginResult.isValid()) {
                     Log.i(TAG, "Postponed plugin result is valid, resending it now");
-                    channelCallback.sendPluginResult(postponedPluginResult.pluginResult);
+                    PostponedPluginResult postponed = postponedPluginResult;
+                    if (!eventDispatcher.replayToChannel(postponed.type, postponed.tag, postponed.message, postponed.pluginResult)) {
+                        Log.i(TAG, "Postponed plugin result rejected by the channel filter");
+                    }
                 } else {
                     Log.i(TAG, "Postponed plugin result not valid anymore, so ignoring it");
                 }
@@ -134,6 +208,26 @@ public class NfcPlugin extends CordovaPlugin {
             return true;
         }
 
+        if (action.equalsIgnoreCase(SUBSCRIBE)) {
+            eventDispatcher.subscribe(data.getString(0), callbackContext, optionsAt(data, 1));
+            return true;
+        }
+
+        if (action.equalsIgnoreCase(UNSUBSCRIBE)) {
+            if (eventDispatcher.unsubscribe(data.getString(0))) {
+                callbackContext.success();
+            } else {
+                callbackContext.error("No subscription " + data.getString(0));
+            }
+            return true;
+        }
+
+        if (action.equalsIgnoreCase(CONFIGURE_CHANNEL)) {
+            eventDispatcher.configureChannel(data.getJSONObject(0));
+            callbackContext.success();
+            return true;
+        }
+
         if (action.equalsIgnoreCase(DISABLE_READER_MODE)) {
             disableReaderMode(callbackContext);
             return true;
@@ -144,7 +238,9 @@ public class NfcPlugin extends CordovaPlugin {
             return true;
         }
 
-        createPendingIntent();
+        if (!lazyInit) {
+            createPendingIntent();
+        }
 
         switch (action) {
             case PING:
@@ -227,15 +323,62 @@ public class NfcPlugin extends CordovaPlugin {
                 break;
 
             case TRANSCEIVE:
-                CordovaArgs args = new CordovaArgs(data);
-                byte[] command = args.getArrayBuffer(0);
-                transceive(command, callbackContext);
+                transceive(data.getString(0), optionsAt(data, 1), callbackContext);
                 break;
 
             case CLOSE:
                 close(callbackContext);
                 break;
 
+            case READ_NFCV_BLOCKS:
+                readNfcVBlocks(data.getInt(0), data.getInt(1), optionsAt(data, 2), callbackContext);
+                break;
+
+            case WRITE_NFCV_BLOCKS:
+                byte[] blocks = new CordovaArgs(data).getArrayBuffer(1);
+                writeNfcVBlocks(data.getInt(0), blocks, optionsAt(data, 2), callbackContext);
+                break;
+
+            case READ_SECTORS:
+                readSectors(data.getJSONArray(0), data.optJSONArray(1), optionsAt(data, 2), callbackContext);
+                break;
+
+            case READ_NFCF_BLOCKS:
+                readNfcFBlocks(data.getJSONArray(0), optionsAt(data, 1), callbackContext);
+                break;
+
+            case SET_ADAPTIVE_TIMEOUTS:
+                adaptiveTimeouts.configure(optionsAt(data, 0));
+                callbackContext.success();
+                break;
+
+            case GET_METRICS:
+                callbackContext.success(getMetrics());
+                break;
+
+            case REGISTER_HCE_ROUTES:
+                registerHceRoutes(data.getJSONObject(0), callbackContext);
+                break;
+
+            case HCE_RESPOND:
+                hceRespond(data.getString(0), callbackContext);
+                break;
+
+            case CONFIGURE_SUN:
+                sunVerifier.configure(data.getJSONObject(0));
+                callbackContext.success();
+                break;
+
+            case CONFIGURE_FINGERPRINT:
+                tagFingerprinter.configure(data.getJSONObject(0));
+                callbackContext.success();
+                break;
+
+            case CONFIGURE_ORIGINALITY:
+                originalityVerifier.configure(data.getJSONObject(0));
+                callbackContext.success();
+                break;
+
             default:
                 return false;
         }
@@ -280,25 +423,53 @@ public class NfcPlugin extends CordovaPlugin {
 
     private final NfcAdapter.ReaderCallback callback = tag -> {
         JSONObject json;
+        NdefMessage message = null;
         List<String> techList = Arrays.asList(tag.getTechList());
         if (techList.contains(Ndef.class.getName())) {
             Ndef ndef = Ndef.get(tag);
             json = Util.ndefToJSON(ndef);
+            message = ndef.getCachedNdefMessage();
         } else {
             json = Util.tagToJSON(tag);
         }
 
-        Intent tagIntent = new Intent();
-        tagIntent.putExtra(NfcAdapter.EXTRA_TAG, tag);
-        setIntent(tagIntent);
+        lastTag = tag;
+        tagPresence.onTagDiscovered(tag);
 
-        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
-        result.setKeepCallback(true);
-        if (readerModeCallback != null) {
-            readerModeCallback.sendPluginResult(result);
-        } else {
+        // the readerMode callback takes the full event with the native tag checks
+        CallbackContext readerCallback = readerModeCallback;
+        JSONObject event = new JSONObject();
+        try {
+            final NdefMessage ndefMessage = message;
+            eventDispatcher.dispatch(READER_MODE_TAG, tag, ndefMessage, false, readerCallback != null, () -> {
+                event.put("type", READER_MODE_TAG);
+                event.put("tag", json);
+                decorateEvent(event, tag, ndefMessage);
+                return event;
+            });
+        } catch (JSONException e) {
+            Log.e(TAG, "Error sending reader mode tag to subscribers", e);
+        }
+
+        if (readerCallback == null) {
             Log.i(TAG, "readerModeCallback is null - reader mode probably disabled in the meantime");
+            return;
         }
+        try {
+            // the readerMode callback gets the check results next to the tag properties
+            Iterator<String> keys = event.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!key.equals("type") && !key.equals("tag")) {
+                    json.put(key, event.get(key));
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error adding tag checks to reader mode result", e);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        readerCallback.sendPluginResult(result);
     };
 
     private void registerDefaultTag(CallbackContext callbackContext) {
@@ -337,13 +508,24 @@ public class NfcPlugin extends CordovaPlugin {
 
     private void init(CallbackContext callbackContext) {
         Log.d(TAG, "Enabling plugin " + getIntent());
-        startNfc();
-        if (!recycledIntent()) {
-            parseMessage();
+        long start = startupMetrics.start();
+        if (!lazyInit || nfcStarted || isNfcIntent(getIntent())) {
+            startNfc();
+            if (!recycledIntent()) {
+                parseMessage();
+            }
         }
+        startupMetrics.record("init", start);
         callbackContext.success();
     }
 
+    private static boolean isNfcIntent(Intent intent) {
+        String action = intent != null ? intent.getAction() : null;
+        return NfcAdapter.ACTION_NDEF_DISCOVERED.equals(action)
+                || NfcAdapter.ACTION_TECH_DISCOVERED.equals(action)
+                || NfcAdapter.ACTION_TAG_DISCOVERED.equals(action);
+    }
+
     private void removeMimeType(JSONArray data, CallbackContext callbackContext) throws JSONException {
         String mimeType = data.getString(0);
         removeIntentFilter(mimeType);
@@ -364,11 +546,11 @@ public class NfcPlugin extends CordovaPlugin {
     }
 
     private void eraseTag(CallbackContext callbackContext) {
-        Tag tag = savedIntent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        Tag tag = getTag();
         NdefRecord[] records = {
             new NdefRecord(NdefRecord.TNF_EMPTY, new byte[0], new byte[0], new byte[0])
         };
-        writeNdefMessage(new NdefMessage(records), tag, callbackContext);
+        writeNdefMessage(new NdefMessage(records), tag, new JSONObject(), callbackContext);
     }
 
     private void writeTag(JSONArray data, CallbackContext callbackContext) throws JSONException {
@@ -376,49 +558,33 @@ public class NfcPlugin extends CordovaPlugin {
             callbackContext.error("Failed to write tag, received null intent");
         }
 
-        Tag tag = savedIntent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        Tag tag = getTag();
         NdefRecord[] records = Util.jsonToNdefRecords(data.getString(0));
-        writeNdefMessage(new NdefMessage(records), tag, callbackContext);
-    }
-
-   private void writeNdefMessage(final NdefMessage message, final Tag tag, final CallbackContext callbackContext) {
-       cordova.getThreadPool().execute(() -> {
-           try {
-               Ndef ndef = Ndef.get(tag);
-               if (ndef != null) {
-                   ndef.connect();
-                   if (ndef.isWritable()) {
-                       int size = message.toByteArray().length;
-                       if (ndef.getMaxSize() < size) {
-                           callbackContext.error("Tag capacity is " + ndef.getMaxSize() + " bytes, message is " + size + " bytes.");
-                       } else {
-                           ndef.writeNdefMessage(message);
-                           callbackContext.success();
-                       }
-                   } else {
-                       callbackContext.error("Tag is read only");
-                   }
-                   ndef.close();
-               } else {
-                   NdefFormatable formatable = NdefFormatable.get(tag);
-                   if (formatable != null) {
-                       formatable.connect();
-                       formatable.format(message);
-                       callbackContext.success();
-                       formatable.close();
-                   } else {
-                       callbackContext.error("Tag doesn't support NDEF");
-                   }
-               }
-           } catch (FormatException e) {
-               callbackContext.error(e.getMessage());
-           } catch (TagLostException e) {
-               callbackContext.error(e.getMessage());
-           } catch (IOException e) {
-               callbackContext.error(e.getMessage());
-           }
-       });
-   }
+        writeNdefMessage(new NdefMessage(records), tag, optionsAt(data, 1), callbackContext);
+    }
+
+    private void writeNdefMessage(final NdefMessage message, final Tag tag, final JSONObject options, final CallbackContext callbackContext) {
+        final WriteRetryPolicy policy = WriteRetryPolicy.fromJSON(options.optJSONObject("retry"));
+        final boolean nativeType4 = options.optBoolean("nativeType4", false);
+        final boolean compress = options.optBoolean("compress", false);
+        if (tag == null) {
+            callbackContext.error("No Tag");
+            return;
+        }
+        cordova.getThreadPool().execute(() -> {
+            try {
+                NdefMessage payload = compress ? Util.compressMessage(message) : message;
+                new ResumableNdefWriter(payload, policy, tagPresence, nativeType4).write(tag);
+                callbackContext.success();
+            } catch (FormatException e) {
+                callbackContext.error(e.getMessage());
+            } catch (TagLostException e) {
+                callbackContext.error(e.getMessage());
+            } catch (IOException e) {
+                callbackContext.error(e.getMessage());
+            }
+        });
+    }
 
     private void makeReadOnly(final CallbackContext callbackContext) {
         if (getIntent() == null) {
@@ -426,7 +592,7 @@ public class NfcPlugin extends CordovaPlugin {
             return;
         }
 
-        final Tag tag = savedIntent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        final Tag tag = getTag();
         if (tag == null) {
             callbackContext.error("Failed to make tag read only, tag is null");
             return;
@@ -549,9 +715,14 @@ public class NfcPlugin extends CordovaPlugin {
     }
 
     private void startNfc() {
+        long start = startupMetrics.start();
+        nfcStarted = true;
+        startupMetrics.nfcStarted();
         createPendingIntent();
+        startupMetrics.record("createPendingIntent", start);
 
         getActivity().runOnUiThread(() -> {
+            long dispatchStart = startupMetrics.start();
             NfcAdapter nfcAdapter = NfcAdapter.getDefaultAdapter(getActivity());
 
             if (nfcAdapter != null && !getActivity().isFinishing()) {
@@ -565,6 +736,7 @@ public class NfcPlugin extends CordovaPlugin {
                     Log.w(TAG, "Illegal State Exception starting NFC. Assuming application is terminating.");
                 }
             }
+            startupMetrics.record("enableForegroundDispatch", dispatchStart);
         });
     }
 
@@ -626,70 +798,129 @@ public class NfcPlugin extends CordovaPlugin {
         return techLists.toArray(new String[0][0]);
     }
 
+    /**
+     * Queues the NFC content of the Activity intent and clears it, so it is not parsed again
+     * when the page reloads.
+     */
     private void parseMessage() {
-        cordova.getThreadPool().execute(() -> {
-            Log.d(TAG, "parseMessage " + getIntent());
-            Intent intent = getIntent();
-            String action = intent.getAction();
-            Log.d(TAG, "action " + action);
-            if (action == null) {
-                return;
+        Intent intent = getIntent();
+        Log.d(TAG, "parseMessage " + intent);
+        if (tagIntake.offer(intent, cordova.getThreadPool())) {
+            Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+            if (tag != null) {
+                lastTag = tag;
             }
+            setIntent(new Intent());
+        }
+    }
 
-            Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-            Parcelable[] messages = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
-
-            if (action.equals(NfcAdapter.ACTION_NDEF_DISCOVERED)) {
-                Ndef ndef = Ndef.get(tag);
-                fireNdefEvent(NDEF_MIME, ndef, messages);
-            } else if (action.equals(NfcAdapter.ACTION_TECH_DISCOVERED)) {
-                for (String tagTech : tag.getTechList()) {
-                    Log.d(TAG, tagTech);
-                    if (tagTech.equals(NdefFormatable.class.getName())) {
-                        fireNdefFormatableEvent(tag);
-                    } else if (tagTech.equals(Ndef.class.getName())) {
-                        Ndef ndef = Ndef.get(tag);
-                        fireNdefEvent(NDEF, ndef, messages);
-                    }
+    private void parseDiscovery(TagIntake.Discovery discovery) {
+        String action = discovery.action;
+        Log.d(TAG, "action " + action);
+        Tag tag = discovery.tag;
+        Parcelable[] messages = discovery.messages;
+
+        if (action.equals(NfcAdapter.ACTION_NDEF_DISCOVERED)) {
+            Ndef ndef = Ndef.get(tag);
+            fireNdefEvent(NDEF_MIME, ndef, messages);
+        } else if (action.equals(NfcAdapter.ACTION_TECH_DISCOVERED)) {
+            for (String tagTech : tag.getTechList()) {
+                Log.d(TAG, tagTech);
+                if (tagTech.equals(NdefFormatable.class.getName())) {
+                    fireNdefFormatableEvent(tag);
+                } else if (tagTech.equals(Ndef.class.getName())) {
+                    Ndef ndef = Ndef.get(tag);
+                    fireNdefEvent(NDEF, ndef, messages);
                 }
-            } else if (action.equals(NfcAdapter.ACTION_TAG_DISCOVERED)) {
-                fireTagEvent(tag, messages);
             }
+        } else if (action.equals(NfcAdapter.ACTION_TAG_DISCOVERED)) {
+            fireTagEvent(tag, messages);
+        }
+    }
 
-            setIntent(new Intent());
-        });
+    private interface TagJSON {
+        JSONObject build() throws JSONException;
     }
 
-    private void sendEvent(String type, JSONObject tag) {
+    /**
+     * Hands an event that does not come from a tag, i.e. from card emulation, to the
+     * subscribers. It is only useful right away, so it is never postponed for the channel.
+     */
+    private void sendEvent(String type, JSONObject data) {
         try {
-            JSONObject event = new JSONObject();
-            event.put("type", type);
-            event.put("tag", tag);
-
-            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
-            result.setKeepCallback(true);
+            eventDispatcher.dispatch(type, null, null, true, false, () -> {
+                JSONObject event = new JSONObject();
+                event.put("type", type);
+                event.put("tag", data);
+                return event;
+            });
+        } catch (JSONException e) {
+            Log.e(TAG, "Error sending NFC event through the channel", e);
+        }
+    }
 
-            if (channelCallback != null) {
-                channelCallback.sendPluginResult(result);
-            } else {
-                postponedPluginResult = new PostponedPluginResult(new Date(), result);
+    /**
+     * Hands the event to the subscribers. The tag JSON and the native tag checks are only
+     * done when a subscriber wants the full event, or to postpone it until the channel is
+     * registered.
+     */
+    private void sendEvent(String type, Tag nfcTag, NdefMessage message, TagJSON tagJSON) {
+        try {
+            boolean postpone = !eventDispatcher.hasChannel();
+            PluginResult result = eventDispatcher.dispatch(type, nfcTag, message, true, postpone, () -> {
+                JSONObject event = new JSONObject();
+                event.put("type", type);
+                event.put("tag", tagJSON.build());
+                decorateEvent(event, nfcTag, message);
+                return event;
+            });
+
+            if (postpone) {
+                postponedPluginResult = new PostponedPluginResult(new Date(), result, type, nfcTag, message);
             }
         } catch (JSONException e) {
             Log.e(TAG, "Error sending NFC event through the channel", e);
         }
     }
 
+    /**
+     * Adds the results of the native checks on a discovered tag to an event.
+     */
+    private void decorateEvent(JSONObject event, Tag tag, NdefMessage message) throws JSONException {
+        TagFingerprinter.Capabilities capabilities = null;
+        if (tag != null && tagFingerprinter.isEnabled()) {
+            capabilities = tagFingerprinter.fingerprint(tag);
+            event.put("capabilities", capabilities.toJSON());
+        }
+        if (tag != null && originalityVerifier.isConfigured()) {
+            JSONObject originality = originalityVerifier.verify(tag, capabilities);
+            if (originality != null) {
+                event.put("originality", originality);
+            }
+        }
+        if (message != null && sunVerifier.isConfigured()) {
+            JSONObject sun = sunVerifier.verify(message, tag != null ? tag.getId() : null);
+            if (sun != null) {
+                event.put("sun", sun);
+            }
+        }
+    }
+
     private void fireNdefEvent(String type, Ndef ndef, Parcelable[] messages) {
-        JSONObject json = buildNdefJSON(ndef, messages);
-        sendEvent(type, json);
+        NdefMessage message = ndef != null ? ndef.getCachedNdefMessage() : firstMessage(messages);
+        sendEvent(type, ndef != null ? ndef.getTag() : null, message, () -> buildNdefJSON(ndef, messages));
     }
 
     private void fireNdefFormatableEvent(Tag tag) {
-        sendEvent(NDEF_FORMATABLE, Util.tagToJSON(tag));
+        sendEvent(NDEF_FORMATABLE, tag, null, () -> Util.tagToJSON(tag));
     }
 
     private void fireTagEvent(Tag tag, Parcelable[] messages) {
-        sendEvent(TAG_DEFAULT, Util.tagToJSON(tag));
+        sendEvent(TAG_DEFAULT, tag, firstMessage(messages), () -> Util.tagToJSON(tag));
+    }
+
+    private static NdefMessage firstMessage(Parcelable[] messages) {
+        return messages != null && messages.length > 0 ? (NdefMessage) messages[0] : null;
     }
 
     private JSONObject buildNdefJSON(Ndef ndef, Parcelable[] messages) {
@@ -736,16 +967,22 @@ public class NfcPlugin extends CordovaPlugin {
     public void onResume(boolean multitasking) {
         Log.d(TAG, "onResume " + getIntent());
         super.onResume(multitasking);
-        startNfc();
+        if (!lazyInit || nfcStarted) {
+            startNfc();
+        }
     }
 
     @Override
     public void onNewIntent(Intent intent) {
         Log.d(TAG, "onNewIntent " + intent);
         super.onNewIntent(intent);
-        setIntent(intent);
-        savedIntent = intent;
-        parseMessage();
+        Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        if (tag != null) {
+            lastTag = tag;
+        }
+        tagPresence.onTagDiscovered(tag);
+        // the Activity intent is left alone, the snapshot carries everything the event needs
+        tagIntake.offer(intent, cordova.getThreadPool());
     }
 
     private Activity getActivity() {
@@ -756,17 +993,49 @@ public class NfcPlugin extends CordovaPlugin {
         return getActivity().getIntent();
     }
 
+    /**
+     * Updates the Activity's own intent on the UI thread. The plugin does not read tags from
+     * it, see {@link #getTag()}.
+     */
     private void setIntent(Intent intent) {
-        getActivity().setIntent(intent);
+        Activity activity = getActivity();
+        activity.runOnUiThread(() -> activity.setIntent(intent));
+    }
+
+    private Tag getTag() {
+        return lastTag;
+    }
+
+    private static JSONObject optionsAt(JSONArray data, int index) {
+        JSONObject options = data.optJSONObject(index);
+        return options != null ? options : new JSONObject();
+    }
+
+    /**
+     * Returns the technology opened through connect when it is of the requested type,
+     * so native operations can run inside an application's transceive session.
+     */
+    private <T extends TagTechnology> T sharedTechnology(Class<T> techClass) {
+        if (techClass.isInstance(tagTechnology) && tagTechnology.isConnected()) {
+            return techClass.cast(tagTechnology);
+        }
+        return null;
+    }
+
+    private void closeQuietly(TagTechnology technology) {
+        if (technology != null && technology != tagTechnology) {
+            try {
+                technology.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing " + technology.getClass().getSimpleName(), e);
+            }
+        }
     }
 
     private void connect(final String tech, final int timeout, final CallbackContext callbackContext) {
         this.cordova.getThreadPool().execute(() -> {
             try {
-                Tag tag = getIntent().getParcelableExtra(NfcAdapter.EXTRA_TAG);
-                if (tag == null && savedIntent != null) {
-                    tag = savedIntent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-                }
+                Tag tag = getTag();
 
                 if (tag == null) {
                     Log.e(TAG, "No Tag");
@@ -779,6 +1048,7 @@ public class NfcPlugin extends CordovaPlugin {
                 List<String> techList = Arrays.asList(tag.getTechList());
                 if (techList.contains(tech)) {
                     tagTechnologyClass = Class.forName(tech);
+                    transceiveMethod = null;
                     Method method = tagTechnologyClass.getMethod("get", Tag.class);
                     tagTechnology = (TagTechnology) method.invoke(null, tag);
 
@@ -798,7 +1068,11 @@ public class NfcPlugin extends CordovaPlugin {
                 }
 
                 tagTechnology.connect();
-                setTimeout(timeout);
+                timeoutKey = adaptiveTimeouts.keyFor(tech, tag);
+                learnedTimeout = timeout < 0 && adaptiveTimeouts.isEnabled();
+                appliedTimeout = -1;
+                platformTimeout = getTimeout();
+                setTimeout(learnedTimeout ? adaptiveTimeouts.timeoutFor(timeoutKey) : timeout);
                 callbackContext.success(resultObject);
 
             } catch (IOException ex) {
@@ -812,6 +1086,18 @@ public class NfcPlugin extends CordovaPlugin {
         });
     }
 
+    /**
+     * @return the timeout of the connected technology, or -1 when it has none
+     */
+    private int getTimeout() {
+        try {
+            Method getTimeout = tagTechnologyClass.getMethod("getTimeout");
+            return (Integer) getTimeout.invoke(tagTechnology);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return -1;
+        }
+    }
+
     private void setTimeout(int timeout) {
         if (timeout < 0) {
             return;
@@ -819,6 +1105,7 @@ public class NfcPlugin extends CordovaPlugin {
         try {
             Method setTimeout = tagTechnologyClass.getMethod("setTimeout", int.class);
             setTimeout.invoke(tagTechnology, timeout);
+            appliedTimeout = timeout;
         } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
             // ignore
         }
@@ -841,8 +1128,14 @@ public class NfcPlugin extends CordovaPlugin {
         });
     }
 
-    private void transceive(final byte[] data, final CallbackContext callbackContext) {
+    /**
+     * @param base64 the command as sent by the bridge for an ArrayBuffer
+     * @param options format 'hex' to answer with a hex string, split to answer with the data
+     *                and the status word as separate results
+     */
+    private void transceive(final String base64, final JSONObject options, final CallbackContext callbackContext) {
         cordova.getThreadPool().execute(() -> {
+            byte[] command = null;
             try {
                 if (tagTechnology == null) {
                     Log.e(TAG, "No Tech");
@@ -855,19 +1148,370 @@ public class NfcPlugin extends CordovaPlugin {
                     return;
                 }
 
-                Method transceiveMethod = tagTechnologyClass.getMethod("transceive", byte[].class);
-                byte[] response = (byte[]) transceiveMethod.invoke(tagTechnology, data);
+                Method method = transceiveMethod;
+                if (method == null) {
+                    method = tagTechnologyClass.getMethod("transceive", byte[].class);
+                    transceiveMethod = method;
+                }
+                command = BinaryCodec.decodeBase64(base64, bufferPool);
+                long start = System.nanoTime();
+                byte[] response;
+                try {
+                    response = (byte[]) method.invoke(tagTechnology, (Object) command);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof TagLostException) {
+                        adaptiveTimeouts.recordTagLost(timeoutKey, learnedTimeout ? platformTimeout : -1);
+                    }
+                    throw e;
+                }
+                recordLatency((System.nanoTime() - start) / 1000000);
 
-                callbackContext.success(response);
+                sendTransceiveResponse(response, options, callbackContext);
+                // the result is encoded already, the response array can serve a later command
+                bufferPool.release(response);
 
             } catch (NoSuchMethodException e) {
                 String error = "TagTechnology " + tagTechnologyClass.getName() + " does not have a transceive function";
                 Log.e(TAG, error, e);
                 callbackContext.error(error);
-            } catch (NullPointerException | IllegalAccessException | InvocationTargetException e) {
+            } catch (NullPointerException | IllegalArgumentException | IllegalAccessException | InvocationTargetException e) {
                 Log.e(TAG, e.getMessage(), e);
                 callbackContext.error(e.getMessage());
+            } finally {
+                bufferPool.release(command);
+            }
+        });
+    }
+
+    private void sendTransceiveResponse(byte[] response, JSONObject options, CallbackContext callbackContext) {
+        boolean hex = "hex".equals(options.optString("format"));
+        if (!options.optBoolean("split", false)) {
+            if (hex) {
+                callbackContext.success(BinaryCodec.encodeHex(response, 0, response.length));
+            } else {
+                callbackContext.success(response);
+            }
+            return;
+        }
+
+        if (response.length < 2) {
+            callbackContext.error("Response has no status word");
+            return;
+        }
+        int length = response.length - 2;
+        int statusWord = ((response[length] & 0xFF) << 8) | (response[length + 1] & 0xFF);
+        List<PluginResult> parts = new ArrayList<>(2);
+        if (hex) {
+            parts.add(new PluginResult(PluginResult.Status.OK, BinaryCodec.encodeHex(response, 0, length)));
+        } else {
+            byte[] body = bufferPool.acquire(length);
+            System.arraycopy(response, 0, body, 0, length);
+            // PluginResult encodes the data when it is created
+            parts.add(new PluginResult(PluginResult.Status.OK, body));
+            bufferPool.release(body);
+        }
+        parts.add(new PluginResult(PluginResult.Status.OK, statusWord));
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, parts));
+    }
+
+    /**
+     * Opens the requested technology of the current tag, reusing the connect session when
+     * possible. Connections opened here are released again with closeQuietly.
+     */
+    private <T extends TagTechnology> T openTechnology(Class<T> techClass) throws IOException {
+        T technology = sharedTechnology(techClass);
+        if (technology == null) {
+            Tag tag = getTag();
+            if (tag == null) {
+                throw new IOException("No Tag");
+            }
+            try {
+                technology = techClass.cast(techClass.getMethod("get", Tag.class).invoke(null, tag));
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (technology == null) {
+                throw new IOException("Tag does not support " + techClass.getName());
+            }
+            technology.connect();
+        }
+        return technology;
+    }
+
+    private NfcVBlockIO prepareNfcVBlockIO(NfcV nfcV, JSONObject options) throws IOException {
+        NfcVBlockIO blockIO = new NfcVBlockIO(nfcV,
+                options.optString("mode", NfcVBlockIO.MODE_ADDRESSED),
+                options.optBoolean("optionFlag", false),
+                options.optInt("retries", 2));
+        blockIO.prepare(options.optInt("blockSize", 0), options.optInt("maxBlocks", 0));
+        return blockIO;
+    }
+
+    /**
+     * Rejects an unknown mode, it would otherwise address whichever tag is in the field.
+     */
+    private static boolean checkNfcVMode(JSONObject options, CallbackContext callbackContext) {
+        String mode = options.optString("mode", NfcVBlockIO.MODE_ADDRESSED);
+        if (!NfcVBlockIO.isMode(mode)) {
+            callbackContext.error("Unknown mode " + mode + ", expecting addressed, selected or unaddressed");
+            return false;
+        }
+        return true;
+    }
+
+    private void readNfcVBlocks(final int firstBlock, final int count, final JSONObject options, final CallbackContext callbackContext) {
+        if (!checkNfcVMode(options, callbackContext)) {
+            return;
+        }
+        cordova.getThreadPool().execute(() -> {
+            NfcV nfcV = null;
+            try {
+                nfcV = openTechnology(NfcV.class);
+                NfcVBlockIO blockIO = prepareNfcVBlockIO(nfcV, options);
+                callbackContext.success(blockIO.readBlocks(firstBlock, count));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read NfcV blocks", e);
+                callbackContext.error(e.getMessage());
+            } finally {
+                closeQuietly(nfcV);
+            }
+        });
+    }
+
+    private void writeNfcVBlocks(final int firstBlock, final byte[] data, final JSONObject options, final CallbackContext callbackContext) {
+        if (!checkNfcVMode(options, callbackContext)) {
+            return;
+        }
+        cordova.getThreadPool().execute(() -> {
+            NfcV nfcV = null;
+            try {
+                nfcV = openTechnology(NfcV.class);
+                NfcVBlockIO blockIO = prepareNfcVBlockIO(nfcV, options);
+                blockIO.writeBlocks(firstBlock, data);
+                callbackContext.success();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write NfcV blocks", e);
+                callbackContext.error(e.getMessage());
+            } finally {
+                closeQuietly(nfcV);
+            }
+        });
+    }
+
+    private void readSectors(final JSONArray sectorArray, final JSONArray keyArray, final JSONObject options, final CallbackContext callbackContext) throws JSONException {
+        final int[] sectors = new int[sectorArray.length()];
+        for (int i = 0; i < sectors.length; i++) {
+            sectors[i] = sectorArray.getInt(i);
+        }
+
+        final List<byte[]> keys = new ArrayList<>();
+        if (keyArray != null) {
+            for (int i = 0; i < keyArray.length(); i++) {
+                byte[] key;
+                try {
+                    key = Util.hexToBytes(keyArray.getString(i));
+                } catch (IllegalArgumentException e) {
+                    callbackContext.error(e.getMessage());
+                    return;
+                }
+                if (key.length != 6) {
+                    callbackContext.error("MIFARE Classic keys are 6 bytes, got " + keyArray.getString(i));
+                    return;
+                }
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            keys.add(MifareClassic.KEY_DEFAULT);
+            keys.add(MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY);
+            keys.add(MifareClassic.KEY_NFC_FORUM);
+        }
+
+        String keyType = options.optString("keyType", "AB").toUpperCase();
+        final boolean useKeyA = keyType.contains("A");
+        final boolean useKeyB = keyType.contains("B");
+
+        cordova.getThreadPool().execute(() -> {
+            MifareClassic mifareClassic = null;
+            try {
+                mifareClassic = openTechnology(MifareClassic.class);
+                callbackContext.success(mifareClassicReader.readSectors(mifareClassic, sectors, keys, useKeyA, useKeyB));
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Failed to read MIFARE Classic sectors", e);
+                callbackContext.error(e.getMessage());
+            } finally {
+                closeQuietly(mifareClassic);
             }
         });
     }
+
+    /**
+     * @param serviceArray [{code: "090F", blocks: [0, 1]}] or [{code: "090F", first: 0, count: 10}]
+     */
+    private void readNfcFBlocks(final JSONArray serviceArray, final JSONObject options, final CallbackContext callbackContext) throws JSONException {
+        final int[] serviceCodes = new int[serviceArray.length()];
+        final int[][] blocks = new int[serviceArray.length()][];
+        final int systemCode;
+        try {
+            for (int i = 0; i < serviceCodes.length; i++) {
+                JSONObject service = serviceArray.getJSONObject(i);
+                serviceCodes[i] = twoByteCode(service.get("code"));
+                JSONArray blockArray = service.optJSONArray("blocks");
+                if (blockArray != null) {
+                    blocks[i] = new int[blockArray.length()];
+                    for (int j = 0; j < blocks[i].length; j++) {
+                        blocks[i][j] = blockArray.getInt(j);
+                    }
+                } else {
+                    int first = service.optInt("first", 0);
+                    blocks[i] = new int[service.getInt("count")];
+                    for (int j = 0; j < blocks[i].length; j++) {
+                        blocks[i][j] = first + j;
+                    }
+                }
+            }
+            systemCode = options.has("systemCode") ? twoByteCode(options.get("systemCode")) : -1;
+        } catch (NumberFormatException e) {
+            callbackContext.error("Invalid service or system code " + e.getMessage());
+            return;
+        }
+
+        cordova.getThreadPool().execute(() -> {
+            NfcF nfcF = null;
+            try {
+                nfcF = openTechnology(NfcF.class);
+                NfcFBlockReader reader = new NfcFBlockReader(nfcF, options.optInt("maxBlocks", 0), options.optInt("retries", 2));
+                if (systemCode >= 0) {
+                    reader.selectSystem(systemCode);
+                }
+                callbackContext.success(reader.read(serviceCodes, blocks));
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Failed to read NfcF blocks", e);
+                callbackContext.error(e.getMessage());
+            } finally {
+                closeQuietly(nfcF);
+            }
+        });
+    }
+
+    /**
+     * FeliCa service and system codes are given as numbers or as hex strings like "090F".
+     */
+    private static int twoByteCode(Object value) {
+        int code = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim(), 16);
+        if (code < 0 || code > 0xFFFF) {
+            throw new NumberFormatException(value.toString());
+        }
+        return code;
+    }
+
+    /**
+     * Feeds the transceive latency into the learned timeouts and applies a changed timeout to
+     * a connection that was opened without an explicit one.
+     */
+    private void recordLatency(long latencyMs) {
+        adaptiveTimeouts.recordLatency(timeoutKey, latencyMs);
+        if (learnedTimeout) {
+            int timeout = adaptiveTimeouts.timeoutFor(timeoutKey);
+            if (timeout >= 0 && timeout != appliedTimeout) {
+                setTimeout(timeout);
+            }
+        }
+    }
+
+    private JSONObject getMetrics() throws JSONException {
+        JSONObject metrics = new JSONObject();
+        metrics.put("transceive", adaptiveTimeouts.toJSON());
+        metrics.put("startup", startupMetrics.toJSON());
+        JSONObject intake = new JSONObject();
+        intake.put("received", tagIntake.getReceived());
+        intake.put("handled", tagIntake.getHandled());
+        metrics.put("intake", intake);
+        metrics.put("buffers", bufferPool.toJSON());
+        return metrics;
+    }
+
+    private final NfcHceService.Listener hceListener = new NfcHceService.Listener() {
+        @Override
+        public boolean onUnmatchedCommand(String aid, byte[] command) {
+            if (!eventDispatcher.wants(HCE_APDU)) {
+                return false;
+            }
+            try {
+                JSONObject apdu = new JSONObject();
+                apdu.put("aid", aid != null ? aid : JSONObject.NULL);
+                apdu.put("command", Util.bytesToHex(command));
+                sendEvent(HCE_APDU, apdu);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to convert APDU into json", e);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDeactivated(int reason) {
+            if (!eventDispatcher.wants(HCE_DEACTIVATED)) {
+                return;
+            }
+            try {
+                JSONObject deactivation = new JSONObject();
+                deactivation.put("reason", reason);
+                sendEvent(HCE_DEACTIVATED, deactivation);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to convert HCE deactivation into json", e);
+            }
+        }
+    };
+
+    private void registerHceRoutes(JSONObject routes, CallbackContext callbackContext) {
+        // the service declares no AIDs of its own, they are registered for it at runtime
+        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
+            callbackContext.error("Host Card Emulation requires Android 5.0");
+            return;
+        }
+        ComponentName service = new ComponentName(getActivity(), NfcHceService.class);
+        if (!isServiceEnabled(service)) {
+            callbackContext.error("Host Card Emulation is disabled, install the plugin with --variable NFC_HCE=true");
+            return;
+        }
+        try {
+            ApduRoutingTable table = NfcHceService.setRoutes(getActivity(), routes);
+            if (!table.getAids().isEmpty()) {
+                CardEmulation cardEmulation = CardEmulation.getInstance(NfcAdapter.getDefaultAdapter(getActivity()));
+                if (!cardEmulation.registerAidsForService(service, CardEmulation.CATEGORY_OTHER, table.getAids())) {
+                    callbackContext.error("Failed to register AIDs " + table.getAids());
+                    return;
+                }
+            }
+            callbackContext.success();
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid HCE routes", e);
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    private boolean isServiceEnabled(ComponentName service) {
+        try {
+            return getActivity().getPackageManager()
+                    .getServiceInfo(service, PackageManager.MATCH_DISABLED_COMPONENTS).isEnabled();
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void hceRespond(String response, CallbackContext callbackContext) {
+        byte[] apdu;
+        try {
+            apdu = Util.hexToBytes(response);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
+        if (NfcHceService.sendResponse(apdu)) {
+            callbackContext.success();
+        } else {
+            callbackContext.error("No APDU is waiting for a response");
+        }
+    }
 }
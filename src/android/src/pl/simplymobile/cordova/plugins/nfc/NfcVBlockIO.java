@@ -0,0 +1,347 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.NfcV;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Batched ISO 15693 block access on top of {@link NfcV}.
+ *
+ * Reads use READ MULTIPLE BLOCKS and writes use WRITE MULTIPLE BLOCKS, each batch sized to
+ * what fits into the tag's max transceive length. When a batch fails only that batch is
+ * retried, falling back to single block commands for the blocks in it.
+ */
+class NfcVBlockIO {
+
+    private static final String TAG = "NfcPlugin";
+
+    static final String MODE_UNADDRESSED = "unaddressed";
+    static final String MODE_ADDRESSED = "addressed";
+    static final String MODE_SELECTED = "selected";
+
+    private static final byte FLAG_HIGH_DATA_RATE = 0x02;
+    private static final byte FLAG_SELECTED = 0x10;
+    private static final byte FLAG_ADDRESSED = 0x20;
+    private static final byte FLAG_OPTION = 0x40;
+
+    private static final byte RESPONSE_ERROR = 0x01;
+    private static final int ERROR_COMMAND_NOT_SUPPORTED = 0x01;
+
+    private static final byte CMD_READ_SINGLE_BLOCK = 0x20;
+    private static final byte CMD_WRITE_SINGLE_BLOCK = 0x21;
+    private static final byte CMD_READ_MULTIPLE_BLOCKS = 0x23;
+    private static final byte CMD_WRITE_MULTIPLE_BLOCKS = 0x24;
+    private static final byte CMD_SELECT = 0x25;
+    private static final byte CMD_GET_SYSTEM_INFO = 0x2B;
+
+    // block number and count are single bytes in the basic command set
+    private static final int MAX_BLOCKS_PER_COMMAND = 256;
+
+    private final NfcV nfcV;
+    private final byte[] uid;
+    private final String mode;
+    private final boolean optionFlag;
+    private final int retries;
+
+    private int blockSize;
+    private int blockCount = -1;
+    private int maxBlocksPerRead;
+    private int maxBlocksPerWrite;
+    private boolean readMultipleSupported = true;
+    private boolean writeMultipleSupported = true;
+
+    static boolean isMode(String mode) {
+        return MODE_ADDRESSED.equals(mode) || MODE_SELECTED.equals(mode) || MODE_UNADDRESSED.equals(mode);
+    }
+
+    NfcVBlockIO(NfcV nfcV, String mode, boolean optionFlag, int retries) {
+        this.nfcV = nfcV;
+        this.uid = nfcV.getTag().getId();
+        this.mode = mode;
+        this.optionFlag = optionFlag;
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * Prepares the tag for block access: issues SELECT in selected mode and resolves the
+     * block size with GET SYSTEM INFO unless the caller already knows it.
+     *
+     * @param knownBlockSize block size in bytes or a value <= 0 to ask the tag
+     * @param maxBlocks upper bound of blocks per command or a value <= 0 for no extra bound
+     */
+    void prepare(int knownBlockSize, int maxBlocks) throws IOException {
+        if (MODE_SELECTED.equals(mode)) {
+            byte[] command = new byte[10];
+            command[0] = FLAG_HIGH_DATA_RATE | FLAG_ADDRESSED;
+            command[1] = CMD_SELECT;
+            System.arraycopy(uid, 0, command, 2, 8);
+            checkResponse(nfcV.transceive(command));
+        }
+
+        if (knownBlockSize > 0) {
+            blockSize = knownBlockSize;
+        } else {
+            readSystemInfo();
+        }
+        if (blockSize <= 0) {
+            throw new IOException("Unable to determine the block size, pass blockSize in the options");
+        }
+
+        // one flag byte precedes the block data in a response
+        int fitting = (nfcV.getMaxTransceiveLength() - 1) / blockSize;
+        // a write command carries flags, command, (uid), first block and count before the data
+        int fittingWrite = (nfcV.getMaxTransceiveLength() - headerLength() - 2) / blockSize;
+        maxBlocksPerRead = bound(fitting, maxBlocks);
+        maxBlocksPerWrite = bound(fittingWrite, maxBlocks);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    byte[] readBlocks(int firstBlock, int count) throws IOException {
+        checkRange(firstBlock, count);
+        ByteArrayOutputStream result = new ByteArrayOutputStream(count * blockSize);
+
+        int block = firstBlock;
+        int end = firstBlock + count;
+        while (block < end) {
+            int batch = readMultipleSupported ? Math.min(maxBlocksPerRead, end - block) : 1;
+            byte[] data = readBatch(block, batch);
+            result.write(data, 0, data.length);
+            block += batch;
+        }
+        return result.toByteArray();
+    }
+
+    void writeBlocks(int firstBlock, byte[] data) throws IOException {
+        if (data.length == 0 || data.length % blockSize != 0) {
+            throw new IOException("Data length " + data.length + " is not a multiple of the block size " + blockSize);
+        }
+        int count = data.length / blockSize;
+        checkRange(firstBlock, count);
+
+        int block = firstBlock;
+        int end = firstBlock + count;
+        while (block < end) {
+            int batch = writeMultipleSupported ? Math.min(maxBlocksPerWrite, end - block) : 1;
+            writeBatch(block, batch, data, (block - firstBlock) * blockSize);
+            block += batch;
+        }
+    }
+
+    private byte[] readBatch(int firstBlock, int count) throws IOException {
+        if (count > 1) {
+            try {
+                return withRetries(() -> readMultiple(firstBlock, count));
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, "READ MULTIPLE BLOCKS " + firstBlock + "+" + count + " failed, reading single blocks: " + e.getMessage());
+            }
+        }
+
+        byte[] data = new byte[count * blockSize];
+        for (int i = 0; i < count; i++) {
+            int block = firstBlock + i;
+            byte[] blockData = withRetries(() -> readSingle(block));
+            System.arraycopy(blockData, 0, data, i * blockSize, blockSize);
+        }
+        return data;
+    }
+
+    private void writeBatch(int firstBlock, int count, byte[] data, int offset) throws IOException {
+        if (count > 1) {
+            try {
+                runWithRetries(() -> writeMultiple(firstBlock, count, data, offset));
+                return;
+            } catch (TagLostException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, "WRITE MULTIPLE BLOCKS " + firstBlock + "+" + count + " failed, writing single blocks: " + e.getMessage());
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int block = firstBlock + i;
+            int blockOffset = offset + i * blockSize;
+            runWithRetries(() -> writeSingle(block, data, blockOffset));
+        }
+    }
+
+    private byte[] readMultiple(int firstBlock, int count) throws IOException {
+        byte[] command = header(CMD_READ_MULTIPLE_BLOCKS, false, 2);
+        command[command.length - 2] = (byte) firstBlock;
+        command[command.length - 1] = (byte) (count - 1);
+        byte[] response;
+        try {
+            response = checkResponse(nfcV.transceive(command));
+        } catch (UnsupportedCommandException e) {
+            readMultipleSupported = false;
+            throw e;
+        }
+        return blockData(response, count);
+    }
+
+    private byte[] readSingle(int block) throws IOException {
+        byte[] command = header(CMD_READ_SINGLE_BLOCK, false, 1);
+        command[command.length - 1] = (byte) block;
+        return blockData(checkResponse(nfcV.transceive(command)), 1);
+    }
+
+    private void writeMultiple(int firstBlock, int count, byte[] data, int offset) throws IOException {
+        int length = count * blockSize;
+        byte[] command = header(CMD_WRITE_MULTIPLE_BLOCKS, optionFlag, 2 + length);
+        int position = command.length - 2 - length;
+        command[position] = (byte) firstBlock;
+        command[position + 1] = (byte) (count - 1);
+        System.arraycopy(data, offset, command, position + 2, length);
+        try {
+            checkResponse(nfcV.transceive(command));
+        } catch (UnsupportedCommandException e) {
+            writeMultipleSupported = false;
+            throw e;
+        }
+    }
+
+    private void writeSingle(int block, byte[] data, int offset) throws IOException {
+        byte[] command = header(CMD_WRITE_SINGLE_BLOCK, optionFlag, 1 + blockSize);
+        int position = command.length - 1 - blockSize;
+        command[position] = (byte) block;
+        System.arraycopy(data, offset, command, position + 1, blockSize);
+        checkResponse(nfcV.transceive(command));
+    }
+
+    private void readSystemInfo() throws IOException {
+        byte[] command = new byte[10];
+        command[0] = FLAG_HIGH_DATA_RATE | FLAG_ADDRESSED;
+        command[1] = CMD_GET_SYSTEM_INFO;
+        System.arraycopy(uid, 0, command, 2, 8);
+        byte[] response = checkResponse(nfcV.transceive(command));
+
+        // flags, info flags, uid (8), [dsfid], [afi], [memory size (2)], [ic reference]
+        if (response.length < 10) {
+            return;
+        }
+        int infoFlags = response[1];
+        int position = 10;
+        if ((infoFlags & 0x01) != 0) {
+            position++;
+        }
+        if ((infoFlags & 0x02) != 0) {
+            position++;
+        }
+        if ((infoFlags & 0x04) != 0 && response.length >= position + 2) {
+            blockCount = (response[position] & 0xFF) + 1;
+            blockSize = (response[position + 1] & 0x1F) + 1;
+        }
+    }
+
+    private byte[] header(byte commandCode, boolean option, int parameterLength) {
+        byte[] command = new byte[headerLength() + parameterLength];
+        byte flags = FLAG_HIGH_DATA_RATE;
+        if (MODE_ADDRESSED.equals(mode)) {
+            flags |= FLAG_ADDRESSED;
+        } else if (MODE_SELECTED.equals(mode)) {
+            flags |= FLAG_SELECTED;
+        }
+        if (option) {
+            flags |= FLAG_OPTION;
+        }
+        command[0] = flags;
+        command[1] = commandCode;
+        if (MODE_ADDRESSED.equals(mode)) {
+            System.arraycopy(uid, 0, command, 2, 8);
+        }
+        return command;
+    }
+
+    private int headerLength() {
+        return MODE_ADDRESSED.equals(mode) ? 10 : 2;
+    }
+
+    private byte[] blockData(byte[] response, int count) throws IOException {
+        int length = count * blockSize;
+        if (response.length < 1 + length) {
+            throw new IOException("Short response, expected " + length + " bytes of block data but got " + (response.length - 1));
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(response, 1, data, 0, length);
+        return data;
+    }
+
+    private byte[] checkResponse(byte[] response) throws IOException {
+        if (response == null || response.length == 0) {
+            throw new IOException("Empty response");
+        }
+        if ((response[0] & RESPONSE_ERROR) != 0) {
+            int error = response.length > 1 ? response[1] & 0xFF : -1;
+            if (error == ERROR_COMMAND_NOT_SUPPORTED) {
+                throw new UnsupportedCommandException();
+            }
+            throw new IOException("Tag returned error code 0x" + Integer.toHexString(error));
+        }
+        return response;
+    }
+
+    private void checkRange(int firstBlock, int count) throws IOException {
+        if (firstBlock < 0 || count <= 0) {
+            throw new IOException("Invalid block range " + firstBlock + "+" + count);
+        }
+        int limit = blockCount > 0 ? Math.min(blockCount, MAX_BLOCKS_PER_COMMAND) : MAX_BLOCKS_PER_COMMAND;
+        if (firstBlock + count > limit) {
+            throw new IOException("Block range " + firstBlock + "+" + count + " exceeds " + limit + " blocks");
+        }
+    }
+
+    private static int bound(int fitting, int maxBlocks) {
+        int bounded = Math.min(Math.max(1, fitting), MAX_BLOCKS_PER_COMMAND);
+        if (maxBlocks > 0) {
+            bounded = Math.min(bounded, maxBlocks);
+        }
+        return bounded;
+    }
+
+    private <T> T withRetries(Exchange<T> exchange) throws IOException {
+        int attempt = 0;
+        while (true) {
+            try {
+                return exchange.run();
+            } catch (TagLostException | UnsupportedCommandException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt++ >= retries) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void runWithRetries(VoidExchange exchange) throws IOException {
+        withRetries(() -> {
+            exchange.run();
+            return null;
+        });
+    }
+
+    private interface Exchange<T> {
+        T run() throws IOException;
+    }
+
+    private interface VoidExchange {
+        void run() throws IOException;
+    }
+
+    private static class UnsupportedCommandException extends IOException {
+        UnsupportedCommandException() {
+            super("Command not supported by tag");
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.nfc.tech.NfcA;
+import android.nfc.tech.TagTechnology;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the NXP originality signature of NTAG, MIFARE Ultralight and DESFire family tags.
+ *
+ * The signature is read with READ_SIG, or its ISO 7816-4 wrapping on ISO 14443-4 chips, and
+ * verified as ECDSA over the UID against the configured public keys: secp128r1 keys for NTAG
+ * 21x and Ultralight EV1, secp224r1 keys for NTAG 424 DNA and DESFire EV2 and later. The
+ * signature of a verified UID is cached, so a repeat tap only compares the signature read
+ * from the tag with the cached one.
+ */
+class OriginalityVerifier {
+
+    private static final String TAG = "NfcPlugin";
+
+    private static final int NXP_MANUFACTURER = 0x04;
+    private static final int SAK_TYPE_2 = 0x00;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final byte[] READ_SIG = {0x3C, 0x00};
+    private static final byte[] READ_SIG_APDU = {(byte) 0x90, 0x3C, 0x00, 0x00, 0x01, 0x00, 0x00};
+
+    private final List<PublicKey> keys = new ArrayList<>();
+    private Map<String, byte[]> verifiedSignatures = lru(DEFAULT_CACHE_SIZE);
+
+    /**
+     * @param json {keys: [{name, key}], cacheSize}, keys are uncompressed points as hex
+     */
+    synchronized void configure(JSONObject json) throws JSONException {
+        List<PublicKey> configured = new ArrayList<>();
+        JSONArray keyArray = json.getJSONArray("keys");
+        for (int i = 0; i < keyArray.length(); i++) {
+            Object entry = keyArray.get(i);
+            String name = null;
+            String hex;
+            if (entry instanceof JSONObject) {
+                name = ((JSONObject) entry).optString("name", null);
+                hex = ((JSONObject) entry).getString("key");
+            } else {
+                hex = entry.toString();
+            }
+            configured.add(new PublicKey(name != null ? name : "key" + i, hex));
+        }
+        keys.clear();
+        keys.addAll(configured);
+        verifiedSignatures = lru(json.optInt("cacheSize", DEFAULT_CACHE_SIZE));
+    }
+
+    synchronized boolean isConfigured() {
+        return !keys.isEmpty();
+    }
+
+    /**
+     * Reads and verifies the signature of an NXP tag. Must not be called on the UI thread.
+     *
+     * READ_SIG is sent to Type 2 tags (SAK 0x00) and Read_Sig to ISO 14443-4 tags; MIFARE
+     * Classic and other NfcA tags are skipped.
+     *
+     * @param capabilities the fingerprint of the tag or null, rules out Type 2 tags without READ_SIG
+     * @return {valid, key, cached, signature} or {valid: false, error}, null for tags without
+     * an originality signature
+     */
+    JSONObject verify(Tag tag, TagFingerprinter.Capabilities capabilities) throws JSONException {
+        byte[] uid = tag.getId();
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA == null || uid.length != 7 || (uid[0] & 0xFF) != NXP_MANUFACTURER) {
+            return null;
+        }
+        IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null && (nfcA.getSak() & 0xFF) != SAK_TYPE_2) {
+            return null;
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("valid", false);
+        if (isoDep == null && !hasReadSig(capabilities)) {
+            result.put("error", "Tag does not support READ_SIG");
+            return result;
+        }
+
+        byte[] signature;
+        try {
+            signature = isoDep != null ? readSignature(isoDep) : readSignature(nfcA);
+        } catch (IOException e) {
+            result.put("error", "Failed to read the signature: " + e.getMessage());
+            return result;
+        }
+        result.put("signature", Util.bytesToHex(signature));
+
+        String uidHex = Util.bytesToHex(uid);
+        List<PublicKey> candidates;
+        synchronized (this) {
+            byte[] cached = verifiedSignatures.get(uidHex);
+            if (cached != null && Arrays.equals(cached, signature)) {
+                result.put("valid", true);
+                result.put("cached", true);
+                return result;
+            }
+            candidates = new ArrayList<>(keys);
+        }
+
+        for (PublicKey key : candidates) {
+            if (key.curve.signatureLength() == signature.length && key.verify(uid, signature)) {
+                synchronized (this) {
+                    verifiedSignatures.put(uidHex, signature);
+                }
+                result.put("valid", true);
+                result.put("key", key.name);
+                result.put("cached", false);
+                return result;
+            }
+        }
+        result.put("error", "Signature does not match any configured key");
+        return result;
+    }
+
+    /**
+     * NTAG 21x and Ultralight EV1 implement READ_SIG. A Type 2 tag without GET_VERSION is an
+     * Ultralight or Ultralight C, neither has it.
+     */
+    private static boolean hasReadSig(TagFingerprinter.Capabilities capabilities) {
+        if (capabilities == null) {
+            return true;
+        }
+        return !Boolean.FALSE.equals(capabilities.fastRead)
+                && ("NTAG".equals(capabilities.family) || "MIFARE Ultralight".equals(capabilities.family));
+    }
+
+    private static byte[] readSignature(NfcA nfcA) throws IOException {
+        try {
+            nfcA.connect();
+            byte[] response = nfcA.transceive(READ_SIG);
+            if (response == null || response.length != 32) {
+                throw new IOException("READ_SIG returned " + (response == null ? 0 : response.length) + " bytes");
+            }
+            return response;
+        } finally {
+            close(nfcA);
+        }
+    }
+
+    private static byte[] readSignature(IsoDep isoDep) throws IOException {
+        try {
+            isoDep.connect();
+            byte[] response = isoDep.transceive(READ_SIG_APDU);
+            int length = response == null ? 0 : response.length;
+            if (length != 58 || response[56] != (byte) 0x91 || (response[57] != (byte) 0x90 && response[57] != 0x00)) {
+                String status = length < 2 ? "no status" : "SW " + Util.bytesToHex(Arrays.copyOfRange(response, length - 2, length));
+                throw new IOException("Read_Sig failed with " + status);
+            }
+            return Arrays.copyOf(response, 56);
+        } finally {
+            close(isoDep);
+        }
+    }
+
+    private static void close(TagTechnology technology) {
+        try {
+            technology.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing tag connection", e);
+        }
+    }
+
+    private static <V> Map<String, V> lru(final int capacity) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static class PublicKey {
+        final String name;
+        final Curve curve;
+        final BigInteger[] point;
+
+        PublicKey(String name, String hex) throws JSONException {
+            byte[] encoded;
+            try {
+                encoded = Util.hexToBytes(hex);
+            } catch (IllegalArgumentException e) {
+                throw new JSONException(e.getMessage());
+            }
+            if (encoded.length == 0 || encoded[0] != 0x04) {
+                throw new JSONException("Public key " + name + " is not an uncompressed point");
+            }
+            int coordinateLength = (encoded.length - 1) / 2;
+            if (coordinateLength == Curve.SECP128R1.length) {
+                curve = Curve.SECP128R1;
+            } else if (coordinateLength == Curve.SECP224R1.length) {
+                curve = Curve.SECP224R1;
+            } else {
+                throw new JSONException("Public key " + name + " is neither a secp128r1 nor a secp224r1 point");
+            }
+            this.name = name;
+            this.point = new BigInteger[]{
+                    new BigInteger(1, Arrays.copyOfRange(encoded, 1, 1 + coordinateLength)),
+                    new BigInteger(1, Arrays.copyOfRange(encoded, 1 + coordinateLength, encoded.length))};
+            if (!curve.contains(point)) {
+                throw new JSONException("Public key " + name + " is not on " + curve.name);
+            }
+        }
+
+        /**
+         * ECDSA verification with the UID taking the place of the message hash.
+         */
+        boolean verify(byte[] uid, byte[] signature) {
+            int half = signature.length / 2;
+            BigInteger r = new BigInteger(1, Arrays.copyOf(signature, half));
+            BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, half, signature.length));
+            BigInteger n = curve.n;
+            if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0) {
+                return false;
+            }
+            BigInteger e = new BigInteger(1, uid);
+            BigInteger w = s.modInverse(n);
+            BigInteger u1 = e.multiply(w).mod(n);
+            BigInteger u2 = r.multiply(w).mod(n);
+            BigInteger[] sum = curve.add(curve.multiply(curve.g, u1), curve.multiply(point, u2));
+            return sum != null && sum[0].mod(n).equals(r);
+        }
+    }
+
+    /**
+     * Short Weierstrass curve arithmetic in affine coordinates, null is the point at infinity.
+     */
+    static final class Curve {
+
+        static final Curve SECP128R1 = new Curve("secp128r1", 16,
+                "FFFFFFFDFFFFFFFFFFFFFFFFFFFFFFFF",
+                "FFFFFFFDFFFFFFFFFFFFFFFFFFFFFFFC",
+                "E87579C11079F43DD824993C2CEE5ED3",
+                "161FF7528B899B2D0C28607CA52C5B86",
+                "CF5AC8395BAFEB13C02DA292DDED7A83",
+                "FFFFFFFE0000000075A30D1B9038A115");
+
+        static final Curve SECP224R1 = new Curve("secp224r1", 28,
+                "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF000000000000000000000001",
+                "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFFFFFFFFFFFFFFFFFFFE",
+                "B4050A850C04B3ABF54132565044B0B7D7BFD8BA270B39432355FFB4",
+                "B70E0CBD6BB4BF7F321390B94A03C1D356C21122343280D6115C1D21",
+                "BD376388B5F723FB4C22DFE6CD4375A05A07476444D5819985007E34",
+                "FFFFFFFFFFFFFFFFFFFFFFFFFFFF16A2E0B8F03E13DD29455C5C2A3D");
+
+        final String name;
+        final int length;
+        final BigInteger p;
+        final BigInteger a;
+        final BigInteger b;
+        final BigInteger[] g;
+        final BigInteger n;
+
+        private Curve(String name, int length, String p, String a, String b, String gx, String gy, String n) {
+            this.name = name;
+            this.length = length;
+            this.p = new BigInteger(p, 16);
+            this.a = new BigInteger(a, 16);
+            this.b = new BigInteger(b, 16);
+            this.g = new BigInteger[]{new BigInteger(gx, 16), new BigInteger(gy, 16)};
+            this.n = new BigInteger(n, 16);
+        }
+
+        int signatureLength() {
+            return 2 * length;
+        }
+
+        boolean contains(BigInteger[] point) {
+            BigInteger x = point[0];
+            BigInteger y = point[1];
+            if (x.signum() < 0 || x.compareTo(p) >= 0 || y.signum() < 0 || y.compareTo(p) >= 0) {
+                return false;
+            }
+            BigInteger left = y.multiply(y).mod(p);
+            BigInteger right = x.multiply(x).add(a).multiply(x).add(b).mod(p);
+            return left.equals(right);
+        }
+
+        BigInteger[] add(BigInteger[] first, BigInteger[] second) {
+            if (first == null) {
+                return second;
+            }
+            if (second == null) {
+                return first;
+            }
+            BigInteger slope;
+            if (first[0].equals(second[0])) {
+                if (!first[1].equals(second[1]) || first[1].signum() == 0) {
+                    return null;
+                }
+                slope = first[0].multiply(first[0]).multiply(BigInteger.valueOf(3)).add(a)
+                        .multiply(first[1].shiftLeft(1).modInverse(p)).mod(p);
+            } else {
+                slope = second[1].subtract(first[1])
+                        .multiply(second[0].subtract(first[0]).modInverse(p)).mod(p);
+            }
+            BigInteger x = slope.multiply(slope).subtract(first[0]).subtract(second[0]).mod(p);
+            BigInteger y = slope.multiply(first[0].subtract(x)).subtract(first[1]).mod(p);
+            return new BigInteger[]{x, y};
+        }
+
+        BigInteger[] multiply(BigInteger[] point, BigInteger k) {
+            BigInteger[] result = null;
+            for (int i = k.bitLength() - 1; i >= 0; i--) {
+                result = add(result, result);
+                if (k.testBit(i)) {
+                    result = add(result, point);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.TagLostException;
+import android.nfc.tech.IsoDep;
+import android.nfc.tech.MifareUltralight;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes an NDEF message according to a {@link WriteRetryPolicy}.
+ *
+ * When the tag leaves the field the write is retried after a backoff once the same tag is
+ * presented again; other errors fail the write right away. Tags with a {@link ChunkedNdefWriter} resume with the
+ * first chunk that was not committed instead of writing the whole message again.
+ */
+class ResumableNdefWriter {
+
+    private static final String TAG = "NfcPlugin";
+
+    private final NdefMessage message;
+    private final WriteRetryPolicy policy;
+    private final TagPresence tagPresence;
+    private final boolean nativeType4;
+
+    private ChunkedNdefWriter chunkedWriter;
+    private boolean platformWriter = false;
+
+    /**
+     * @param nativeType4 write Type 4 tags with {@link Type4NdefWriter} instead of the platform
+     */
+    ResumableNdefWriter(NdefMessage message, WriteRetryPolicy policy, TagPresence tagPresence, boolean nativeType4) {
+        this.message = message;
+        this.policy = policy;
+        this.tagPresence = tagPresence;
+        this.nativeType4 = nativeType4;
+    }
+
+    void write(Tag tag) throws IOException, FormatException {
+        byte[] uid = tag.getId();
+        Tag current = tag;
+        int attempt = 1;
+        while (true) {
+            long discoveries = tagPresence.getDiscoveries();
+            try {
+                writeOnce(current);
+                return;
+            } catch (TagLostException e) {
+                // the Tag handle is stale once the tag left the field, only a rediscovered tag can be written
+                if (attempt >= policy.maxAttempts || policy.waitForTagMs == 0) {
+                    throw new TagLostException("Tag was lost" + progress());
+                }
+                Log.w(TAG, "Write attempt " + attempt + " failed: " + e + progress());
+            }
+
+            sleep(policy.backoffBefore(attempt));
+            Tag returned = awaitTag(uid, discoveries);
+            if (returned == null) {
+                throw new IOException("Tag was not presented again within " + policy.waitForTagMs + " ms" + progress());
+            }
+            current = returned;
+            attempt++;
+        }
+    }
+
+    private void writeOnce(Tag tag) throws IOException, FormatException {
+        Ndef ndef = Ndef.get(tag);
+        if (ndef != null) {
+            if (!ndef.isWritable()) {
+                throw new WriteRejectedException("Tag is read only");
+            }
+            int size = message.toByteArray().length;
+            if (ndef.getMaxSize() < size) {
+                throw new WriteRejectedException("Tag capacity is " + ndef.getMaxSize() + " bytes, message is " + size + " bytes.");
+            }
+
+            if (chunkedWriter == null && !platformWriter) {
+                chunkedWriter = chunkedWriterFor(tag, ndef);
+            }
+            if (chunkedWriter != null) {
+                try {
+                    chunkedWriter.write(tag);
+                    return;
+                } catch (WriteRejectedException e) {
+                    if (chunkedWriter.getCommittedChunks() > 0) {
+                        throw e;
+                    }
+                    Log.w(TAG, "Chunked write refused, using the platform writer: " + e.getMessage());
+                    chunkedWriter = null;
+                    platformWriter = true;
+                }
+            }
+
+            ndef.connect();
+            try {
+                ndef.writeNdefMessage(message);
+            } finally {
+                closeQuietly(ndef);
+            }
+        } else {
+            NdefFormatable formatable = NdefFormatable.get(tag);
+            if (formatable == null) {
+                throw new WriteRejectedException("Tag doesn't support NDEF");
+            }
+            formatable.connect();
+            try {
+                formatable.format(message);
+            } finally {
+                closeQuietly(formatable);
+            }
+        }
+    }
+
+    /**
+     * Type 4 tags get the UPDATE BINARY writer when nativeType4 is requested, its larger frames
+     * are faster than the platform. Type 2 tags are only written page by page when a retry can resume the write.
+     */
+    private ChunkedNdefWriter chunkedWriterFor(Tag tag, Ndef ndef) {
+        List<String> techList = Arrays.asList(tag.getTechList());
+        if (nativeType4 && Ndef.NFC_FORUM_TYPE_4.equals(ndef.getType())
+                && techList.contains(IsoDep.class.getName())) {
+            return new Type4NdefWriter(message);
+        }
+        if (policy.retries() && Ndef.NFC_FORUM_TYPE_2.equals(ndef.getType())
+                && techList.contains(MifareUltralight.class.getName())) {
+            return new Type2NdefWriter(message);
+        }
+        return null;
+    }
+
+    private Tag awaitTag(byte[] uid, long discoveries) throws IOException {
+        try {
+            return tagPresence.awaitTag(uid, discoveries, policy.waitForTagMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the tag", e);
+        }
+    }
+
+    private String progress() {
+        if (chunkedWriter == null) {
+            return "";
+        }
+        return " (" + chunkedWriter.getCommittedChunks() + " of " + chunkedWriter.getChunkCount() + " chunks written)";
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while backing off", e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing tag connection", e);
+        }
+    }
+
+    /**
+     * A write that is refused by the tag and will not succeed on retry.
+     */
+    static class WriteRejectedException extends IOException {
+        WriteRejectedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time spent by the plugin in startup related work, to compare eager and deferred startup.
+ */
+class StartupMetrics {
+
+    private final boolean lazy;
+    private final long createdNanos = System.nanoTime();
+    private long firstNfcStartNanos = -1;
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+
+    StartupMetrics(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since start to a phase, e.g. pluginInitialize, init or startNfc.
+     */
+    synchronized void record(String phase, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        long[] totals = phases.get(phase);
+        if (totals == null) {
+            totals = new long[2];
+            phases.put(phase, totals);
+        }
+        totals[0]++;
+        totals[1] += elapsed;
+    }
+
+    synchronized void nfcStarted() {
+        if (firstNfcStartNanos < 0) {
+            firstNfcStartNanos = System.nanoTime();
+        }
+    }
+
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("mode", lazy ? "lazy" : "eager");
+        json.put("firstNfcStartMs", firstNfcStartNanos < 0 ? -1 : (firstNfcStartNanos - createdNanos) / 1000000.0);
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            JSONObject totals = new JSONObject();
+            totals.put("count", phase.getValue()[0]);
+            totals.put("totalMs", phase.getValue()[1] / 1000000.0);
+            json.put(phase.getKey(), totals);
+        }
+        return json;
+    }
+}
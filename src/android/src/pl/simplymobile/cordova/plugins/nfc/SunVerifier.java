@@ -0,0 +1,398 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.net.Uri;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies NTAG 424 DNA Secure Unique NFC (SUN) messages found in URI records.
+ *
+ * The encrypted PICCData is decrypted with the SDM meta read key to get the UID and the read
+ * counter, the SDM file read session key is derived from them and the SDMMAC is checked.
+ * File read keys can be diversified per UID (NXP AN10922); diversified keys and the CMAC
+ * subkeys of every key are cached. A counter that does not increase for a UID is reported
+ * as a replay.
+ */
+class SunVerifier {
+
+    private static final String TAG = "NfcPlugin";
+
+    private static final int MAX_CACHED_KEYS = 512;
+    private static final int MAX_TRACKED_UIDS = 4096;
+    private static final int UID_LENGTH = 7;
+    // AN10922 AES-128 input: constant, UID and diversification data in two CMAC blocks
+    private static final int MAX_DIVERSIFICATION_INPUT = 32;
+
+    private static final byte[] SV2_PREFIX = {0x3C, (byte) 0xC3, 0x00, 0x01, 0x00, (byte) 0x80};
+    private static final byte[] ZERO_IV = new byte[16];
+
+    private final List<Profile> profiles = new ArrayList<>();
+    private boolean replayProtection = true;
+
+    private final Map<String, CmacKey> keyCache = lru(MAX_CACHED_KEYS);
+    private final Map<String, byte[]> diversifiedKeys = lru(MAX_CACHED_KEYS);
+    private final Map<String, Integer> lastCounters = lru(MAX_TRACKED_UIDS);
+
+    /**
+     * @param json {profiles: [{id, metaReadKey, fileReadKey, diversify, piccParam, uidParam,
+     *             ctrParam, cmacParam, macInputParam}], replayProtection}
+     */
+    synchronized void configure(JSONObject json) throws JSONException {
+        List<Profile> configured = new ArrayList<>();
+        JSONArray profileArray = json.getJSONArray("profiles");
+        for (int i = 0; i < profileArray.length(); i++) {
+            configured.add(new Profile(profileArray.getJSONObject(i)));
+        }
+        profiles.clear();
+        profiles.addAll(configured);
+        replayProtection = json.optBoolean("replayProtection", true);
+        keyCache.clear();
+        diversifiedKeys.clear();
+    }
+
+    synchronized boolean isConfigured() {
+        return !profiles.isEmpty();
+    }
+
+    /**
+     * @param uid UID reported by the tag, used when the message does not mirror the UID
+     * @return the verification result of the first URI record carrying a SUN message, or null
+     */
+    synchronized JSONObject verify(NdefMessage message, byte[] uid) throws JSONException {
+        if (message == null || profiles.isEmpty()) {
+            return null;
+        }
+        for (NdefRecord record : message.getRecords()) {
+            String uri = uriOf(record);
+            if (uri == null) {
+                continue;
+            }
+            for (Profile profile : profiles) {
+                if (profile.matches(uri)) {
+                    return verify(profile, uri, uid);
+                }
+            }
+        }
+        return null;
+    }
+
+    private JSONObject verify(Profile profile, String uri, byte[] tagUid) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("profile", profile.id);
+        result.put("valid", false);
+
+        try {
+            byte[] uid;
+            int counter;
+            boolean uidMirrored = true;
+            if (profile.piccParam != null) {
+                byte[] picc = decrypt(profile.metaReadKey, Util.hexToBytes(parameter(uri, profile.piccParam, 32)));
+                int uidLength = picc[0] & 0x0F;
+                uidMirrored = (picc[0] & 0x80) != 0;
+                boolean counterMirrored = (picc[0] & 0x40) != 0;
+                uid = uidMirrored ? Arrays.copyOfRange(picc, 1, 1 + uidLength) : tagUid;
+                int counterOffset = uidMirrored ? 1 + uidLength : 1;
+                counter = counterMirrored ? littleEndian(picc, counterOffset) : -1;
+            } else {
+                uid = Util.hexToBytes(parameter(uri, profile.uidParam, 14));
+                // the plain mirror shows the counter most significant byte first
+                counter = Integer.parseInt(parameter(uri, profile.ctrParam, 6), 16);
+            }
+            if (uid == null) {
+                result.put("error", "UID not available");
+                return result;
+            }
+            result.put("uid", Util.bytesToHex(uid));
+            result.put("counter", counter);
+
+            byte[] expected = Util.hexToBytes(parameter(uri, profile.cmacParam, 16));
+            byte[] macInput = macInput(uri, profile);
+            byte[] fileReadKey = profile.diversify ? diversifiedKey(profile, uid) : profile.fileReadKey;
+            byte[] sessionKey = cmac(fileReadKey, sessionVector(uidMirrored ? uid : null, counter));
+            byte[] mac = truncate(cmac(sessionKey, macInput));
+
+            if (!Arrays.equals(mac, expected)) {
+                result.put("error", "SDMMAC mismatch");
+                return result;
+            }
+            result.put("valid", true);
+
+            if (counter >= 0) {
+                String key = Util.bytesToHex(uid);
+                Integer last = lastCounters.get(key);
+                boolean replay = last != null && counter <= last;
+                result.put("replay", replay);
+                if (replay && replayProtection) {
+                    result.put("valid", false);
+                    result.put("error", "Read counter " + counter + " is not above " + last);
+                } else if (!replay) {
+                    lastCounters.put(key, counter);
+                }
+            }
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            Log.w(TAG, "SUN verification failed", e);
+            result.put("error", e.getMessage());
+        }
+        return result;
+    }
+
+    private static String uriOf(NdefRecord record) {
+        if (record.getTnf() == NdefRecord.TNF_WELL_KNOWN && Arrays.equals(record.getType(), NdefRecord.RTD_URI)
+                || record.getTnf() == NdefRecord.TNF_ABSOLUTE_URI) {
+            Uri uri = record.toUri();
+            return uri != null ? uri.toString() : null;
+        }
+        return null;
+    }
+
+    /**
+     * The hex value of a query parameter, taken by position so the MAC input can be located.
+     */
+    private static String parameter(String uri, String name, int length) {
+        int start = valueStart(uri, name);
+        if (start < 0 || start + length > uri.length()) {
+            throw new IllegalArgumentException("Parameter " + name + " not found");
+        }
+        return uri.substring(start, start + length);
+    }
+
+    private static int valueStart(String uri, String name) {
+        String key = name + "=";
+        int index = uri.indexOf("?" + key);
+        if (index < 0) {
+            index = uri.indexOf("&" + key);
+        }
+        return index < 0 ? -1 : index + 1 + key.length();
+    }
+
+    /**
+     * The MAC covers the URI from the value of macInputParam up to the value of the CMAC
+     * parameter; without macInputParam the input is empty.
+     */
+    private static byte[] macInput(String uri, Profile profile) {
+        if (profile.macInputParam == null) {
+            return new byte[0];
+        }
+        int start = valueStart(uri, profile.macInputParam);
+        int end = valueStart(uri, profile.cmacParam);
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Parameter " + profile.macInputParam + " not found");
+        }
+        return uri.substring(start, end).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * SV2 holds the UID and the read counter only when they are mirrored, zero padded to a block.
+     *
+     * @param uid the mirrored UID or null
+     * @param counter the mirrored read counter or -1
+     */
+    private static byte[] sessionVector(byte[] uid, int counter) {
+        byte[] sv2 = new byte[16];
+        System.arraycopy(SV2_PREFIX, 0, sv2, 0, SV2_PREFIX.length);
+        int position = SV2_PREFIX.length;
+        if (uid != null) {
+            int length = Math.min(uid.length, UID_LENGTH);
+            System.arraycopy(uid, 0, sv2, position, length);
+            position += length;
+        }
+        if (counter >= 0) {
+            sv2[position++] = (byte) counter;
+            sv2[position++] = (byte) (counter >> 8);
+            sv2[position] = (byte) (counter >> 16);
+        }
+        return sv2;
+    }
+
+    private static int littleEndian(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16;
+    }
+
+    /**
+     * The odd bytes of the CMAC, as NTAG 424 DNA truncates it to 8 bytes.
+     */
+    private static byte[] truncate(byte[] mac) {
+        byte[] truncated = new byte[8];
+        for (int i = 0; i < truncated.length; i++) {
+            truncated[i] = mac[i * 2 + 1];
+        }
+        return truncated;
+    }
+
+    /**
+     * AES-128 key diversification per NXP AN10922 with the UID as diversification input.
+     */
+    private byte[] diversifiedKey(Profile profile, byte[] uid) throws GeneralSecurityException {
+        String cacheKey = profile.id + "/" + Util.bytesToHex(uid);
+        byte[] cached = diversifiedKeys.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (1 + uid.length + profile.diversificationData.length > MAX_DIVERSIFICATION_INPUT) {
+            throw new GeneralSecurityException("Diversification input exceeds " + MAX_DIVERSIFICATION_INPUT + " bytes for UID " + Util.bytesToHex(uid));
+        }
+        byte[] input = new byte[MAX_DIVERSIFICATION_INPUT];
+        input[0] = 0x01;
+        System.arraycopy(uid, 0, input, 1, uid.length);
+        System.arraycopy(profile.diversificationData, 0, input, 1 + uid.length, profile.diversificationData.length);
+        int length = 1 + uid.length + profile.diversificationData.length;
+        boolean padded = length < input.length;
+        if (padded) {
+            input[length] = (byte) 0x80;
+        }
+        CmacKey master = cmacKey(profile.fileReadKey);
+        byte[] diversified = master.mac(input, padded);
+
+        diversifiedKeys.put(cacheKey, diversified);
+        return diversified;
+    }
+
+    private byte[] cmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        int blocks = Math.max(1, (data.length + 15) / 16);
+        boolean padded = data.length == 0 || data.length % 16 != 0;
+        byte[] message = Arrays.copyOf(data, blocks * 16);
+        if (padded) {
+            message[data.length] = (byte) 0x80;
+        }
+        return cmacKey(key).mac(message, padded);
+    }
+
+    private CmacKey cmacKey(byte[] key) throws GeneralSecurityException {
+        String cacheKey = Util.bytesToHex(key);
+        CmacKey cached = keyCache.get(cacheKey);
+        if (cached == null) {
+            byte[] l = encrypt(key, new byte[16]);
+            byte[] k1 = shiftLeft(l);
+            byte[] k2 = shiftLeft(k1);
+            cached = new CmacKey(key, k1, k2);
+            keyCache.put(cacheKey, cached);
+        }
+        return cached;
+    }
+
+    private static byte[] shiftLeft(byte[] block) {
+        byte[] shifted = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            shifted[i] = (byte) (block[i] << 1 | (i < 15 ? (block[i + 1] & 0xFF) >>> 7 : 0));
+        }
+        if ((block[0] & 0x80) != 0) {
+            shifted[15] ^= (byte) 0x87;
+        }
+        return shifted;
+    }
+
+    private static byte[] encrypt(byte[] key, byte[] block) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(block);
+    }
+
+    private static byte[] decrypt(byte[] key, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(ZERO_IV));
+        return cipher.doFinal(data);
+    }
+
+    private static <V> Map<String, V> lru(final int capacity) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    private static class CmacKey {
+        final byte[] key;
+        final byte[] k1;
+        final byte[] k2;
+
+        CmacKey(byte[] key, byte[] k1, byte[] k2) {
+            this.key = key;
+            this.k1 = k1;
+            this.k2 = k2;
+        }
+
+        /**
+         * CMAC over a message that is already a multiple of the block size, the last block
+         * is masked with K2 when it was padded and with K1 otherwise.
+         */
+        byte[] mac(byte[] message, boolean padded) throws GeneralSecurityException {
+            byte[] last = padded ? k2 : k1;
+            byte[] input = message.clone();
+            int lastBlock = input.length - 16;
+            for (int i = 0; i < 16; i++) {
+                input[lastBlock + i] ^= last[i];
+            }
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(ZERO_IV));
+            byte[] encrypted = cipher.doFinal(input);
+            return Arrays.copyOfRange(encrypted, lastBlock, lastBlock + 16);
+        }
+    }
+
+    private static class Profile {
+        final String id;
+        final byte[] metaReadKey;
+        final byte[] fileReadKey;
+        final boolean diversify;
+        final byte[] diversificationData;
+        final String piccParam;
+        final String uidParam;
+        final String ctrParam;
+        final String cmacParam;
+        final String macInputParam;
+
+        Profile(JSONObject json) throws JSONException {
+            id = json.optString("id", "default");
+            piccParam = json.has("uidParam") ? null : json.optString("piccParam", "picc_data");
+            uidParam = json.optString("uidParam", null);
+            ctrParam = json.optString("ctrParam", "ctr");
+            cmacParam = json.optString("cmacParam", "cmac");
+            macInputParam = json.optString("macInputParam", null);
+            diversify = json.optBoolean("diversify", false);
+            try {
+                metaReadKey = piccParam != null ? key(json.getString("metaReadKey")) : null;
+                fileReadKey = key(json.getString("fileReadKey"));
+                diversificationData = Util.hexToBytes(json.optString("diversificationData", ""));
+            } catch (IllegalArgumentException e) {
+                throw new JSONException(e.getMessage());
+            }
+            if (1 + UID_LENGTH + diversificationData.length > MAX_DIVERSIFICATION_INPUT) {
+                throw new JSONException("Diversification data of profile " + id + " is limited to "
+                        + (MAX_DIVERSIFICATION_INPUT - 1 - UID_LENGTH) + " bytes, got " + diversificationData.length);
+            }
+        }
+
+        boolean matches(String uri) {
+            String param = piccParam != null ? piccParam : uidParam;
+            return valueStart(uri, param) >= 0 && valueStart(uri, cmacParam) >= 0;
+        }
+
+        private static byte[] key(String hex) throws JSONException {
+            byte[] key = Util.hexToBytes(hex);
+            if (key.length != 16) {
+                throw new JSONException("AES-128 keys are 16 bytes, got " + key.length);
+            }
+            return key;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.nfc.tech.NfcA;
+import android.nfc.tech.NfcB;
+import android.nfc.tech.NfcF;
+import android.nfc.tech.NfcV;
+import android.nfc.tech.TagTechnology;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds a capability profile of a discovered tag: chip family, memory size, FAST_READ and
+ * extended length APDU support and the max frame size.
+ *
+ * ATQA/SAK and the historical bytes come with the tag. When probing is enabled, GET_VERSION is
+ * sent to NXP Type 2 tags and, wrapped in an APDU, to NXP ISO 14443-4 tags; other chips may NAK
+ * it and drop to HALT, so a tag that refused it is re-activated. Profiles are cached by UID
+ * prefix together with ATQA/SAK, so a tag seen before is described again without any command.
+ */
+class TagFingerprinter {
+
+    private static final String TAG = "NfcPlugin";
+
+    private static final int MAX_CACHED_PROFILES = 1024;
+    private static final int NXP_MANUFACTURER = 0x04;
+
+    private static final byte[] GET_VERSION = {0x60};
+    private static final byte[] GET_VERSION_APDU = {(byte) 0x90, 0x60, 0x00, 0x00, 0x00};
+    private static final byte[] ADDITIONAL_FRAME_APDU = {(byte) 0x90, (byte) 0xAF, 0x00, 0x00, 0x00};
+
+    private static final int PRODUCT_ULTRALIGHT = 0x03;
+    private static final int PRODUCT_NTAG = 0x04;
+    private static final int PRODUCT_DESFIRE = 0x01;
+    private static final int PRODUCT_PLUS = 0x02;
+
+    // product type, subtype, major version and storage size of GET_VERSION to chip and user memory
+    private static final Map<String, Object[]> CHIPS = new HashMap<>();
+
+    static {
+        CHIPS.put("0401010B", new Object[]{"NTAG210", 48});
+        CHIPS.put("0401010E", new Object[]{"NTAG212", 128});
+        CHIPS.put("0402010F", new Object[]{"NTAG213", 144});
+        CHIPS.put("04020111", new Object[]{"NTAG215", 504});
+        CHIPS.put("04020113", new Object[]{"NTAG216", 888});
+        CHIPS.put("0404020F", new Object[]{"NTAG 213 TT", 144});
+        CHIPS.put("04050213", new Object[]{"NTAG I2C 1k", 888});
+        CHIPS.put("04050215", new Object[]{"NTAG I2C 2k", 1904});
+        CHIPS.put("0301010B", new Object[]{"MIFARE Ultralight EV1 MF0UL11", 48});
+        CHIPS.put("0301010E", new Object[]{"MIFARE Ultralight EV1 MF0UL21", 128});
+        CHIPS.put("04023011", new Object[]{"NTAG 424 DNA", 416});
+    }
+
+    private boolean enabled = false;
+    private boolean probe = false;
+    private int uidPrefixLength = 0;
+
+    private final Map<String, Capabilities> profiles = new LinkedHashMap<String, Capabilities>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Capabilities> eldest) {
+            return size() > MAX_CACHED_PROFILES;
+        }
+    };
+
+    /**
+     * @param json {enabled, probe (false) to send GET_VERSION, uidPrefixLength (0 for the whole UID)}
+     */
+    synchronized void configure(JSONObject json) {
+        enabled = json.optBoolean("enabled", true);
+        probe = json.optBoolean("probe", false);
+        uidPrefixLength = Math.max(0, json.optInt("uidPrefixLength", 0));
+        profiles.clear();
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the cached profile of the tag or builds it, talking to the tag when probing is
+     * enabled. Must not be called on the UI thread.
+     */
+    Capabilities fingerprint(Tag tag) {
+        String key;
+        boolean probeTag;
+        synchronized (this) {
+            key = keyFor(tag);
+            Capabilities cached = profiles.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            probeTag = probe;
+        }
+
+        Capabilities capabilities = describe(tag, probeTag);
+        synchronized (this) {
+            profiles.put(key, capabilities);
+        }
+        return capabilities;
+    }
+
+    private String keyFor(Tag tag) {
+        byte[] id = tag.getId();
+        int length = uidPrefixLength > 0 ? Math.min(uidPrefixLength, id.length) : id.length;
+        StringBuilder key = new StringBuilder(Util.bytesToHex(id).substring(0, length * 2));
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA != null) {
+            key.append('/').append(Util.bytesToHex(nfcA.getAtqa())).append('/').append(Integer.toHexString(nfcA.getSak()));
+        } else {
+            key.append('/').append(tag.getTechList()[0]);
+        }
+        return key.toString();
+    }
+
+    private static Capabilities describe(Tag tag, boolean probe) {
+        Capabilities capabilities = new Capabilities();
+        NfcA nfcA = NfcA.get(tag);
+        IsoDep isoDep = IsoDep.get(tag);
+
+        if (nfcA != null) {
+            capabilities.atqa = Util.bytesToHex(nfcA.getAtqa());
+            capabilities.sak = nfcA.getSak() & 0xFF;
+            capabilities.maxTransceiveLength = nfcA.getMaxTransceiveLength();
+            capabilities.family = familyOf(capabilities.sak, isoDep != null);
+        } else if (NfcB.get(tag) != null) {
+            capabilities.family = "ISO 14443-B";
+            capabilities.maxTransceiveLength = NfcB.get(tag).getMaxTransceiveLength();
+        } else if (NfcF.get(tag) != null) {
+            capabilities.family = "FeliCa";
+            capabilities.maxTransceiveLength = NfcF.get(tag).getMaxTransceiveLength();
+        } else if (NfcV.get(tag) != null) {
+            capabilities.family = "ISO 15693";
+            capabilities.maxTransceiveLength = NfcV.get(tag).getMaxTransceiveLength();
+        }
+
+        if (isoDep != null) {
+            byte[] historical = isoDep.getHistoricalBytes();
+            if (historical != null) {
+                capabilities.historicalBytes = Util.bytesToHex(historical);
+            }
+            capabilities.extendedApdu = isoDep.isExtendedLengthApduSupported();
+            capabilities.maxTransceiveLength = isoDep.getMaxTransceiveLength();
+        }
+
+        byte[] id = tag.getId();
+        boolean nxp = id.length > 0 && (id[0] & 0xFF) == NXP_MANUFACTURER;
+        if (probe && nxp && nfcA != null && capabilities.sak == 0x00 && isoDep == null) {
+            byte[] version = exchange(nfcA, GET_VERSION);
+            if (version != null && version.length >= 8) {
+                applyVersion(capabilities, version);
+                capabilities.fastRead = true;
+            } else {
+                // Ultralight and Ultralight C do not implement GET_VERSION
+                capabilities.fastRead = false;
+            }
+        } else if (probe && nxp && isoDep != null && nfcA != null) {
+            byte[] version = getVersionApdu(isoDep);
+            if (version != null) {
+                applyVersion(capabilities, version);
+            }
+        }
+        return capabilities;
+    }
+
+    private static String familyOf(int sak, boolean isoDep) {
+        switch (sak) {
+            case 0x00:
+                return "MIFARE Ultralight";
+            case 0x08:
+                return "MIFARE Classic 1K";
+            case 0x18:
+                return "MIFARE Classic 4K";
+            case 0x09:
+                return "MIFARE Mini";
+            case 0x10:
+            case 0x11:
+                return "MIFARE Plus";
+            case 0x28:
+            case 0x38:
+                return "SmartMX with MIFARE Classic";
+            default:
+                return isoDep ? "ISO 14443-4" : "ISO 14443-A";
+        }
+    }
+
+    /**
+     * Reads vendor, product type, subtype, major and minor version, storage size and protocol.
+     */
+    private static void applyVersion(Capabilities capabilities, byte[] version) {
+        int product = version[2] & 0xFF;
+        int storage = version[6] & 0xFF;
+        capabilities.version = Util.bytesToHex(Arrays.copyOf(version, 8));
+
+        if (product == PRODUCT_NTAG) {
+            capabilities.family = "NTAG";
+        } else if (product == PRODUCT_ULTRALIGHT) {
+            capabilities.family = "MIFARE Ultralight";
+        } else if (product == PRODUCT_DESFIRE && capabilities.sak == 0x20) {
+            capabilities.family = "MIFARE DESFire";
+        } else if (product == PRODUCT_PLUS && capabilities.sak == 0x20) {
+            capabilities.family = "MIFARE Plus";
+        }
+
+        Object[] chip = CHIPS.get(Util.bytesToHex(new byte[]{
+                version[2], version[3], version[4], version[6]}));
+        if (chip != null) {
+            capabilities.chip = (String) chip[0];
+            capabilities.memorySize = (Integer) chip[1];
+        } else {
+            // the storage size is 2^n bytes, or between 2^n and 2^(n+1) when the low bit is set
+            capabilities.memorySize = 1 << (storage >> 1);
+        }
+    }
+
+    /**
+     * GetVersion in the ISO 7816-4 wrapping understood by DESFire, Plus and NTAG 4xx chips.
+     * The three frames are read so the chip is not left in the middle of a command.
+     *
+     * @return the 8 byte hardware version (vendor to protocol, with a leading 0x00), or null
+     */
+    private static byte[] getVersionApdu(IsoDep isoDep) {
+        try {
+            isoDep.connect();
+            byte[] response = isoDep.transceive(GET_VERSION_APDU);
+            if (response == null || response.length != 9 || response[7] != (byte) 0x91 || response[8] != (byte) 0xAF) {
+                // the command may have deselected the application of the card
+                reactivate(isoDep);
+                return null;
+            }
+            for (int frame = 0; frame < 2; frame++) {
+                byte[] next = isoDep.transceive(ADDITIONAL_FRAME_APDU);
+                if (next == null || next.length < 2 || next[next.length - 2] != (byte) 0x91 || next[next.length - 1] != (byte) 0xAF) {
+                    break;
+                }
+            }
+            byte[] version = new byte[8];
+            System.arraycopy(response, 0, version, 1, 7);
+            return version;
+        } catch (IOException e) {
+            Log.d(TAG, "GetVersion APDU not supported: " + e.getMessage());
+            reactivate(isoDep);
+            return null;
+        } finally {
+            close(isoDep);
+        }
+    }
+
+    private static byte[] exchange(NfcA nfcA, byte[] command) {
+        try {
+            nfcA.connect();
+            byte[] response = nfcA.transceive(command);
+            if (response == null || response.length < 8) {
+                // a NAK leaves the tag in HALT
+                reactivate(nfcA);
+            }
+            return response;
+        } catch (IOException e) {
+            Log.d(TAG, "GET_VERSION not supported: " + e.getMessage());
+            reactivate(nfcA);
+            return null;
+        } finally {
+            close(nfcA);
+        }
+    }
+
+    /**
+     * Reconnects so the tag is selected again before any later command.
+     */
+    private static void reactivate(TagTechnology technology) {
+        close(technology);
+        try {
+            technology.connect();
+        } catch (IOException e) {
+            Log.d(TAG, "Tag could not be re-activated: " + e.getMessage());
+        }
+    }
+
+    private static void close(TagTechnology technology) {
+        try {
+            technology.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing tag connection", e);
+        }
+    }
+
+    /**
+     * Capability profile of a tag, unknown values are null.
+     */
+    static class Capabilities {
+        String family;
+        String chip;
+        String atqa;
+        int sak = -1;
+        String historicalBytes;
+        String version;
+        Integer memorySize;
+        Boolean fastRead;
+        Boolean extendedApdu;
+        int maxTransceiveLength;
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("family", family);
+            json.put("chip", chip);
+            json.put("atqa", atqa);
+            if (sak >= 0) {
+                json.put("sak", sak);
+            }
+            json.put("historicalBytes", historicalBytes);
+            json.put("version", version);
+            json.put("memorySize", memorySize);
+            json.put("fastRead", fastRead);
+            json.put("extendedApdu", extendedApdu);
+            json.put("maxTransceiveLength", maxTransceiveLength);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.content.Intent;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue between the threads delivering NFC intents and the worker building the events.
+ *
+ * Producers only copy the action, tag and messages out of the intent, so a burst of taps is
+ * queued in order and none is lost when the next intent arrives before the previous one was
+ * parsed. At most one drain task runs on the executor at a time.
+ */
+class TagIntake {
+
+    private static final String TAG = "NfcPlugin";
+
+    interface Handler {
+        void onDiscovery(Discovery discovery);
+    }
+
+    static class Discovery {
+        final String action;
+        final Tag tag;
+        final Parcelable[] messages;
+
+        private Discovery(String action, Tag tag, Parcelable[] messages) {
+            this.action = action;
+            this.tag = tag;
+            this.messages = messages;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Discovery> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final Handler handler;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+
+    TagIntake(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Queues the NFC content of an intent.
+     *
+     * @return false when the intent has no action and nothing was queued
+     */
+    boolean offer(Intent intent, ExecutorService executor) {
+        String action = intent != null ? intent.getAction() : null;
+        if (action == null) {
+            return false;
+        }
+        Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        Parcelable[] messages = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
+        queue.offer(new Discovery(action, tag, messages != null ? messages.clone() : null));
+        received.incrementAndGet();
+        scheduleDrain(executor);
+        return true;
+    }
+
+    long getReceived() {
+        return received.get();
+    }
+
+    long getHandled() {
+        return handled.get();
+    }
+
+    private void scheduleDrain(ExecutorService executor) {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(() -> drain(executor));
+        }
+    }
+
+    private void drain(ExecutorService executor) {
+        try {
+            Discovery discovery;
+            while ((discovery = queue.poll()) != null) {
+                try {
+                    handler.onDiscovery(discovery);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error handling " + discovery.action, e);
+                }
+                handled.incrementAndGet();
+            }
+        } finally {
+            draining.set(false);
+        }
+        // an offer between the last poll and the reset found the drain still running
+        if (!queue.isEmpty()) {
+            scheduleDrain(executor);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.Tag;
+
+import java.util.Arrays;
+
+/**
+ * Tracks discovered tags so a worker can wait for a specific tag to be presented again.
+ */
+class TagPresence {
+
+    private Tag lastTag;
+    private long discoveries = 0;
+
+    synchronized void onTagDiscovered(Tag tag) {
+        if (tag == null) {
+            return;
+        }
+        lastTag = tag;
+        discoveries++;
+        notifyAll();
+    }
+
+    synchronized long getDiscoveries() {
+        return discoveries;
+    }
+
+    /**
+     * Waits for a tag with the given UID discovered after the given discovery count.
+     *
+     * @return the re-presented tag or null when it did not return in time
+     */
+    synchronized Tag awaitTag(byte[] uid, long afterDiscoveries, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long seen = afterDiscoveries;
+        while (true) {
+            if (discoveries > seen) {
+                seen = discoveries;
+                if (Arrays.equals(lastTag.getId(), uid)) {
+                    return lastTag;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+    }
+}
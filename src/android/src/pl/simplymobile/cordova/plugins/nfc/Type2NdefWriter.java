@@ -0,0 +1,152 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Page by page NDEF writer for NFC Forum Type 2 tags.
+ *
+ * The pages holding the NDEF TLV header are first overwritten with an empty NDEF TLV, then
+ * the remaining pages of the message are written, and finally the header pages carrying the
+ * real length.
+ */
+class Type2NdefWriter implements ChunkedNdefWriter {
+
+    private static final int PAGE_SIZE = MifareUltralight.PAGE_SIZE;
+    private static final int CC_PAGE = 3;
+    private static final int FIRST_DATA_PAGE = 4;
+
+    private static final byte TLV_NULL = 0x00;
+    private static final byte TLV_NDEF = 0x03;
+    private static final byte TLV_TERMINATOR = (byte) 0xFE;
+
+    private final byte[] message;
+
+    private byte[] image;
+    private byte[] emptyImage;
+    private int headerPages;
+    private int pageCount;
+
+    private boolean emptied = false;
+    private int committedPages = 0;
+
+    Type2NdefWriter(NdefMessage message) {
+        this.message = message.toByteArray();
+    }
+
+    @Override
+    public void write(Tag tag) throws IOException {
+        MifareUltralight ultralight = MifareUltralight.get(tag);
+        if (ultralight == null) {
+            throw new IOException("Tag does not support " + MifareUltralight.class.getName());
+        }
+        ultralight.connect();
+        try {
+            if (image == null) {
+                prepare(ultralight);
+            }
+            if (!emptied) {
+                for (int page = 0; page < headerPages; page++) {
+                    writePage(ultralight, emptyImage, page);
+                }
+                emptied = true;
+            }
+            // data pages first, header pages with the real length last
+            while (committedPages < pageCount) {
+                int page = committedPages < pageCount - headerPages
+                        ? headerPages + committedPages
+                        : committedPages - (pageCount - headerPages);
+                writePage(ultralight, image, page);
+                committedPages++;
+            }
+        } finally {
+            ultralight.close();
+        }
+    }
+
+    @Override
+    public int getChunkCount() {
+        return pageCount;
+    }
+
+    @Override
+    public int getCommittedChunks() {
+        return committedPages;
+    }
+
+    private void prepare(MifareUltralight ultralight) throws IOException {
+        // READ returns four pages, the capability container and the first data pages
+        byte[] cc = ultralight.readPages(CC_PAGE);
+        int dataAreaSize = (cc[2] & 0xFF) * 8;
+        byte[] head = ultralight.readPages(FIRST_DATA_PAGE);
+        int tlvOffset = findNdefTlv(head);
+
+        int lengthSize = message.length < 0xFF ? 1 : 3;
+        int used = tlvOffset + 1 + lengthSize + message.length;
+        if (used > dataAreaSize) {
+            throw new ResumableNdefWriter.WriteRejectedException("Tag capacity is " + dataAreaSize + " bytes, message needs " + used + " bytes.");
+        }
+        int end = used < dataAreaSize ? used + 1 : used;
+        pageCount = (end + PAGE_SIZE - 1) / PAGE_SIZE;
+
+        image = new byte[pageCount * PAGE_SIZE];
+        System.arraycopy(head, 0, image, 0, Math.min(tlvOffset, head.length));
+        int position = tlvOffset;
+        image[position++] = TLV_NDEF;
+        if (lengthSize == 1) {
+            image[position++] = (byte) message.length;
+        } else {
+            image[position++] = (byte) 0xFF;
+            image[position++] = (byte) (message.length >> 8);
+            image[position++] = (byte) message.length;
+        }
+        System.arraycopy(message, 0, image, position, message.length);
+        if (end > used) {
+            image[used] = TLV_TERMINATOR;
+        }
+
+        // empty NDEF TLV followed by a terminator, covering every page the real header touches
+        int headerEnd = tlvOffset + Math.max(3, 1 + lengthSize);
+        headerPages = Math.min(pageCount, (headerEnd + PAGE_SIZE - 1) / PAGE_SIZE);
+        emptyImage = Arrays.copyOf(image, headerPages * PAGE_SIZE);
+        emptyImage[tlvOffset] = TLV_NDEF;
+        emptyImage[tlvOffset + 1] = 0x00;
+        emptyImage[tlvOffset + 2] = TLV_TERMINATOR;
+    }
+
+    /**
+     * Offset of the NDEF TLV in the data area, skipping NULL, lock control and memory control
+     * TLVs. A terminator means the NDEF TLV goes there.
+     */
+    private static int findNdefTlv(byte[] head) throws IOException {
+        int offset = 0;
+        while (offset < head.length) {
+            byte type = head[offset];
+            if (type == TLV_NDEF || type == TLV_TERMINATOR) {
+                return offset;
+            } else if (type == TLV_NULL) {
+                offset++;
+            } else if (offset + 1 >= head.length) {
+                break;
+            } else if ((head[offset + 1] & 0xFF) != 0xFF) {
+                offset += 2 + (head[offset + 1] & 0xFF);
+            } else if (offset + 3 < head.length) {
+                // three byte length format
+                offset += 4 + (((head[offset + 2] & 0xFF) << 8) | (head[offset + 3] & 0xFF));
+            } else {
+                break;
+            }
+        }
+        throw new ResumableNdefWriter.WriteRejectedException("No NDEF TLV found in the first " + head.length + " bytes of the data area");
+    }
+
+    private static void writePage(MifareUltralight ultralight, byte[] source, int page) throws IOException {
+        byte[] data = new byte[PAGE_SIZE];
+        System.arraycopy(source, page * PAGE_SIZE, data, 0, PAGE_SIZE);
+        ultralight.writePage(FIRST_DATA_PAGE + page, data);
+    }
+}
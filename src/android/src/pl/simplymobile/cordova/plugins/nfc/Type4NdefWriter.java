@@ -0,0 +1,203 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+
+import java.io.IOException;
+
+/**
+ * NDEF writer for NFC Forum Type 4 tags using UPDATE BINARY.
+ *
+ * The message is written in chunks sized to the smaller of the tag's MLc and what fits into
+ * {@link IsoDep#getMaxTransceiveLength()}, using extended length APDUs where the reader
+ * supports them. The length prefix, NLEN or the 4 byte ENLEN of mapping version 3.0, is
+ * cleared before and written after the message, so an interrupted write leaves an empty NDEF
+ * file rather than a truncated message.
+ *
+ * Only security and file errors reject the write; other status words are plain I/O errors.
+ */
+class Type4NdefWriter implements ChunkedNdefWriter {
+
+    private static final byte[] SELECT_NDEF_APPLICATION = {
+            0x00, (byte) 0xA4, 0x04, 0x00, 0x07, (byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01, 0x00
+    };
+    private static final byte[] CC_FILE_ID = {(byte) 0xE1, 0x03};
+
+    private static final byte TLV_NDEF_FILE_CONTROL = 0x04;
+    private static final byte TLV_EXTENDED_NDEF_FILE_CONTROL = 0x06;
+
+    private static final int NLEN_SIZE = 2;
+    private static final int ENLEN_SIZE = 4;
+    // UPDATE BINARY with an offset in P1-P2 reaches the first 32 KB
+    private static final int MAX_OFFSET = 0x7FFF;
+    private static final int SHORT_HEADER = 5;
+    private static final int EXTENDED_HEADER = 7;
+
+    private final byte[] message;
+
+    private byte[] ndefFileId;
+    private int lengthSize;
+    private int chunkSize;
+    private int chunkCount;
+    private boolean extendedLength;
+
+    private boolean emptied = false;
+    private int committedChunks = 0;
+    private boolean lengthWritten = false;
+
+    Type4NdefWriter(NdefMessage message) {
+        this.message = message.toByteArray();
+    }
+
+    @Override
+    public void write(Tag tag) throws IOException {
+        IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null) {
+            throw new IOException("Tag does not support " + IsoDep.class.getName());
+        }
+        isoDep.connect();
+        try {
+            transceive(isoDep, SELECT_NDEF_APPLICATION, "SELECT NDEF application");
+            if (ndefFileId == null) {
+                prepare(isoDep);
+            }
+            transceive(isoDep, select(ndefFileId), "SELECT NDEF file");
+
+            if (!emptied) {
+                updateBinary(isoDep, 0, new byte[lengthSize], 0, lengthSize);
+                emptied = true;
+            }
+            while (committedChunks < chunkCount) {
+                int start = committedChunks * chunkSize;
+                int length = Math.min(chunkSize, message.length - start);
+                updateBinary(isoDep, lengthSize + start, message, start, length);
+                committedChunks++;
+            }
+            if (!lengthWritten) {
+                byte[] length = new byte[lengthSize];
+                for (int i = 0; i < lengthSize; i++) {
+                    length[i] = (byte) (message.length >> (8 * (lengthSize - 1 - i)));
+                }
+                updateBinary(isoDep, 0, length, 0, lengthSize);
+                lengthWritten = true;
+            }
+        } finally {
+            isoDep.close();
+        }
+    }
+
+    @Override
+    public int getChunkCount() {
+        return chunkCount + 2;
+    }
+
+    @Override
+    public int getCommittedChunks() {
+        return (emptied ? 1 : 0) + committedChunks + (lengthWritten ? 1 : 0);
+    }
+
+    private void prepare(IsoDep isoDep) throws IOException {
+        transceive(isoDep, select(CC_FILE_ID), "SELECT CC file");
+        byte[] cc = readBinary(isoDep, 0, 15);
+
+        // CCLEN (2), mapping version (1), MLe (2), MLc (2), NDEF file control TLV
+        int maxCommandData = ((cc[5] & 0xFF) << 8) | (cc[6] & 0xFF);
+        int maxNdefSize;
+        int writeAccess;
+        if (cc[7] == TLV_NDEF_FILE_CONTROL) {
+            ndefFileId = new byte[]{cc[9], cc[10]};
+            maxNdefSize = ((cc[11] & 0xFF) << 8) | (cc[12] & 0xFF);
+            writeAccess = cc[14] & 0xFF;
+            lengthSize = NLEN_SIZE;
+        } else if (cc[7] == TLV_EXTENDED_NDEF_FILE_CONTROL) {
+            byte[] extended = readBinary(isoDep, 15, 2);
+            ndefFileId = new byte[]{cc[9], cc[10]};
+            maxNdefSize = (int) Math.min(Integer.MAX_VALUE,
+                    ((cc[11] & 0xFFL) << 24) | ((cc[12] & 0xFF) << 16) | ((cc[13] & 0xFF) << 8) | (cc[14] & 0xFF));
+            writeAccess = extended[1] & 0xFF;
+            lengthSize = ENLEN_SIZE;
+        } else {
+            throw new IOException("Unsupported capability container, no NDEF file control TLV");
+        }
+
+        if (writeAccess != 0x00) {
+            throw new ResumableNdefWriter.WriteRejectedException("Tag is read only");
+        }
+        if (lengthSize + message.length > Math.min(maxNdefSize, MAX_OFFSET + 1)) {
+            throw new ResumableNdefWriter.WriteRejectedException("Tag capacity is " + (maxNdefSize - lengthSize)
+                    + " bytes, message is " + message.length + " bytes.");
+        }
+
+        extendedLength = isoDep.isExtendedLengthApduSupported() && maxCommandData > 0xFF;
+        int header = extendedLength ? EXTENDED_HEADER : SHORT_HEADER;
+        int frameLimit = isoDep.getMaxTransceiveLength() - header;
+        int apduLimit = extendedLength ? 0xFFFF : 0xFF;
+        chunkSize = Math.max(1, Math.min(Math.min(maxCommandData, apduLimit), frameLimit));
+        chunkCount = (message.length + chunkSize - 1) / chunkSize;
+    }
+
+    private void updateBinary(IsoDep isoDep, int offset, byte[] data, int start, int length) throws IOException {
+        boolean extended = length > 0xFF;
+        byte[] command = new byte[(extended ? EXTENDED_HEADER : SHORT_HEADER) + length];
+        command[0] = 0x00;
+        command[1] = (byte) 0xD6;
+        command[2] = (byte) (offset >> 8);
+        command[3] = (byte) offset;
+        if (extended) {
+            command[4] = 0x00;
+            command[5] = (byte) (length >> 8);
+            command[6] = (byte) length;
+        } else {
+            command[4] = (byte) length;
+        }
+        System.arraycopy(data, start, command, command.length - length, length);
+        transceive(isoDep, command, "UPDATE BINARY at " + offset);
+    }
+
+    private byte[] readBinary(IsoDep isoDep, int offset, int length) throws IOException {
+        byte[] command = {0x00, (byte) 0xB0, (byte) (offset >> 8), (byte) offset, (byte) length};
+        byte[] response = transceive(isoDep, command, "READ BINARY");
+        if (response.length < length + 2) {
+            throw new IOException("READ BINARY returned " + (response.length - 2) + " bytes, expected " + length);
+        }
+        return response;
+    }
+
+    private static byte[] select(byte[] fileId) {
+        return new byte[]{0x00, (byte) 0xA4, 0x00, 0x0C, 0x02, fileId[0], fileId[1]};
+    }
+
+    private static byte[] transceive(IsoDep isoDep, byte[] command, String description) throws IOException {
+        byte[] response = isoDep.transceive(command);
+        int length = response.length;
+        if (length < 2) {
+            throw new IOException(description + " failed with no status word");
+        }
+        int statusWord = ((response[length - 2] & 0xFF) << 8) | (response[length - 1] & 0xFF);
+        if (statusWord == 0x9000) {
+            return response;
+        }
+        String message = description + " failed with SW " + String.format("%04X", statusWord);
+        if (isRejection(statusWord)) {
+            throw new ResumableNdefWriter.WriteRejectedException(message);
+        }
+        throw new IOException(message);
+    }
+
+    /**
+     * Security, access condition and file errors, which repeating the command cannot fix.
+     */
+    private static boolean isRejection(int statusWord) {
+        switch (statusWord) {
+            case 0x6982:
+            case 0x6985:
+            case 0x6A81:
+            case 0x6A82:
+            case 0x6D00:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package pl.simplymobile.cordova.plugins.nfc;
 
+import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.Tag;
@@ -9,14 +10,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class Util {
 
     static final String TAG = "NfcPlugin";
 
+    // external type record holding a raw deflate stream of a complete NDEF message
+    static final byte[] COMPRESSED_TYPE = "simplymobile.pl:z".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_INFLATED_SIZE = 1024 * 1024;
+
     static JSONObject ndefToJSON(Ndef ndef) {
         JSONObject json = new JSONObject();
 
@@ -109,6 +119,27 @@ public class Util {
         return b;
     }
 
+    static String bytesToHex(byte[] bytes) {
+        return BinaryCodec.encodeHex(bytes, 0, bytes.length);
+    }
+
+    static byte[] hexToBytes(String hex) {
+        String digits = hex.replaceAll("[\\s:-]", "");
+        if (digits.length() % 2 != 0) {
+            throw new IllegalArgumentException("Expecting an even number of hex characters: " + hex);
+        }
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(digits.charAt(i * 2), 16);
+            int low = Character.digit(digits.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
     static JSONArray messageToJSON(NdefMessage message) {
         if (message == null) {
             return null;
@@ -116,7 +147,7 @@ public class Util {
 
         List<JSONObject> list = new ArrayList<JSONObject>();
 
-        for (NdefRecord ndefRecord : message.getRecords()) {
+        for (NdefRecord ndefRecord : expandRecords(message)) {
             list.add(recordToJSON(ndefRecord));
         }
 
@@ -137,4 +168,76 @@ public class Util {
         return json;
     }
 
+    /**
+     * Replaces the message with a single compressed record when that makes it smaller.
+     */
+    static NdefMessage compressMessage(NdefMessage message) {
+        byte[] original = message.toByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(original);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(original.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+                if (compressed.size() >= original.length) {
+                    return message;
+                }
+            }
+            NdefMessage compressedMessage = new NdefMessage(new NdefRecord[]{
+                    new NdefRecord(NdefRecord.TNF_EXTERNAL_TYPE, COMPRESSED_TYPE, new byte[0], compressed.toByteArray())
+            });
+            return compressedMessage.toByteArray().length < original.length ? compressedMessage : message;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The records of the message with compressed records replaced by the records they hold.
+     */
+    static NdefRecord[] expandRecords(NdefMessage message) {
+        NdefRecord[] records = message.getRecords();
+        List<NdefRecord> expanded = null;
+        for (int i = 0; i < records.length; i++) {
+            NdefRecord record = records[i];
+            if (record.getTnf() == NdefRecord.TNF_EXTERNAL_TYPE && Arrays.equals(record.getType(), COMPRESSED_TYPE)) {
+                if (expanded == null) {
+                    expanded = new ArrayList<>(Arrays.asList(records).subList(0, i));
+                }
+                try {
+                    expanded.addAll(Arrays.asList(new NdefMessage(inflate(record.getPayload())).getRecords()));
+                } catch (FormatException | DataFormatException e) {
+                    Log.e(TAG, "Failed to decompress ndef record, keeping it as is", e);
+                    expanded.add(record);
+                }
+            } else if (expanded != null) {
+                expanded.add(record);
+            }
+        }
+        return expanded == null ? records : expanded.toArray(new NdefRecord[0]);
+    }
+
+    private static byte[] inflate(byte[] payload) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed payload");
+                }
+                inflated.write(buffer, 0, length);
+                if (inflated.size() > MAX_INFLATED_SIZE) {
+                    throw new DataFormatException("Decompressed payload exceeds " + MAX_INFLATED_SIZE + " bytes");
+                }
+            }
+            return inflated.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
 }
@@ -0,0 +1,47 @@
+package pl.simplymobile.cordova.plugins.nfc;
+
+import org.json.JSONObject;
+
+/**
+ * Attempt limit and backoff for NDEF writes that fail because the tag left the field.
+ */
+class WriteRetryPolicy {
+
+    final int maxAttempts;
+    final long backoffMs;
+    final double backoffMultiplier;
+    final long maxBackoffMs;
+    final long waitForTagMs;
+
+    WriteRetryPolicy(int maxAttempts, long backoffMs, double backoffMultiplier, long maxBackoffMs, long waitForTagMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMs = Math.max(0, backoffMs);
+        this.backoffMultiplier = Math.max(1.0, backoffMultiplier);
+        this.maxBackoffMs = Math.max(this.backoffMs, maxBackoffMs);
+        this.waitForTagMs = Math.max(0, waitForTagMs);
+    }
+
+    /**
+     * @param json {attempts, backoffMs, backoffMultiplier, maxBackoffMs, waitForTagMs} or null for a single attempt
+     */
+    static WriteRetryPolicy fromJSON(JSONObject json) {
+        if (json == null) {
+            return new WriteRetryPolicy(1, 0, 1.0, 0, 0);
+        }
+        return new WriteRetryPolicy(
+                json.optInt("attempts", 3),
+                json.optLong("backoffMs", 50),
+                json.optDouble("backoffMultiplier", 2.0),
+                json.optLong("maxBackoffMs", 1000),
+                json.optLong("waitForTagMs", 3000));
+    }
+
+    boolean retries() {
+        return maxAttempts > 1;
+    }
+
+    long backoffBefore(int attempt) {
+        double backoff = backoffMs * Math.pow(backoffMultiplier, attempt - 1);
+        return (long) Math.min(backoff, maxBackoffMs);
+    }
+}
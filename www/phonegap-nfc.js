@@ -414,6 +414,8 @@ var ndef = {
 
 };
 
+var subscriptionCount = 0;
+
 // nfc provides javascript wrappers to the native phonegap implementation
 var nfc = {
 
@@ -446,13 +448,14 @@ var nfc = {
         cordova.exec(win, fail, "NfcPlugin", "registerNdefFormatable", []);
     },
 
+    // options on Android - retry: {attempts, backoffMs, backoffMultiplier, maxBackoffMs, waitForTagMs}
+    // retries a write when the tag leaves the field and is presented again within waitForTagMs (0 fails right away),
+    //   Type 2 tags resume with the first page not written
+    // nativeType4 (default false) - write Type 4 tags with UPDATE BINARY chunks sized to the max transceive length
+    // compress (default false) - store the message as one deflate compressed record when that is smaller,
+    //   reads on Android expand it transparently
     write: function (ndefMessage, win, fail, options) {
-
-        if (cordova.platformId === "ios") {
-          cordova.exec(win, fail, "NfcPlugin", "writeTag", [ndefMessage, options]);
-        } else {
-          cordova.exec(win, fail, "NfcPlugin", "writeTag", [ndefMessage]);
-        }
+        cordova.exec(win, fail, "NfcPlugin", "writeTag", [ndefMessage, options || {}]);
     },
 
     makeReadOnly: function (win, fail) {
@@ -554,7 +557,9 @@ var nfc = {
 
     // data - ArrayBuffer or string of hex data for transcieve
     // the results of transceive are returned in the promise success as an ArrayBuffer
-    transceive: function(data) {
+    // options on Android - format 'hex' returns a hex string instead of an ArrayBuffer
+    //   split returns {data, sw} with the status word as a number and the data without it
+    transceive: function(data, options) {
         return new Promise(function(resolve, reject) {
 
             var buffer;
@@ -568,7 +573,148 @@ var nfc = {
                 reject("Expecting an ArrayBuffer or String");
             }
 
-            cordova.exec(resolve, reject, 'NfcPlugin', 'transceive', [buffer]);
+            var success = resolve;
+            if (options && options.split) {
+                success = function(data, sw) {
+                    resolve({ data: data, sw: sw });
+                };
+            }
+
+            cordova.exec(success, reject, 'NfcPlugin', 'transceive', [buffer, options || {}]);
+        });
+    },
+
+    // Android only - read a range of ISO 15693 (NfcV) blocks with READ MULTIPLE BLOCKS
+    // options - mode ('addressed', 'selected' or 'unaddressed'), blockSize, maxBlocks, retries
+    // the block data is returned in the promise success as a single ArrayBuffer
+    readNfcVBlocks: function(firstBlock, count, options) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'readNfcVBlocks', [firstBlock, count, options || {}]);
+        });
+    },
+
+    // Android only - write ISO 15693 (NfcV) blocks with WRITE MULTIPLE BLOCKS
+    // data - ArrayBuffer or string of hex data, a multiple of the block size
+    // options - mode, blockSize, maxBlocks, retries, optionFlag
+    writeNfcVBlocks: function(firstBlock, data, options) {
+        return new Promise(function(resolve, reject) {
+            var buffer = typeof data === 'string' ? util.hexStringToArrayBuffer(data) : data;
+            cordova.exec(resolve, reject, 'NfcPlugin', 'writeNfcVBlocks', [firstBlock, buffer, options || {}]);
+        });
+    },
+
+    // Android only - authenticate and read MIFARE Classic sectors
+    // sectors - array of sector numbers
+    // keys - array of 6 byte keys as hex strings, defaults to the well known keys
+    // options - keyType 'A', 'B' or 'AB' (default)
+    // resolves with {id, sectors: [{sector, keyType, key, data}]}, data is the hex of all sector blocks
+    readSectors: function(sectors, keys, options) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'readSectors', [sectors, keys || [], options || {}]);
+        });
+    },
+
+    // Android only - read FeliCa (NfcF) blocks with Read Without Encryption
+    // services - array of {code: '090F', blocks: [0, 1, 2]} or {code: '090F', first: 0, count: 10}
+    // options - systemCode to poll for before reading, maxBlocks per command, retries
+    // resolves with {idm, pmm, services: [{code, blocks, data}]}, data is the hex of all blocks of the service
+    readNfcFBlocks: function(services, options) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'readNfcFBlocks', [services, options || {}]);
+        });
+    },
+
+    // Android only - learn transceive timeouts from observed latency
+    // applied to connections opened without an explicit timeout, a lost tag doubles the timeout for the next
+    //   10 successful exchanges, up to maxMs
+    // options - enabled, percentile (0.99), marginMs (20), minMs (50), maxMs (5000), minSamples (20),
+    //           window (1000), keyBy ('tech', 'uidPrefix' or 'atqaSak'), uidPrefixLength (3)
+    setAdaptiveTimeouts: function(options) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'setAdaptiveTimeouts', [options || {}]);
+        });
+    },
+
+    // Android only - plugin metrics, e.g. the learned transceive timeouts and the startup cost
+    getMetrics: function() {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'getMetrics', []);
+        });
+    },
+
+    // Android only - answer Host Card Emulation APDUs natively from a routing table
+    // requires the plugin to be installed with --variable NFC_HCE=true
+    // routes - {aids: ['F0010203040506'], routes: [{aid, prefix, response}]}
+    //   aids are registered for the service at runtime, it declares none of its own
+    //   aid '*' applies a route to every AID, the longest matching command prefix wins
+    //   response is hex with optional {cmd:offset:length} and {counter:width} placeholders
+    // commands without a route fire an 'hce-apdu' event, answer them with hceRespond
+    registerHceRoutes: function(routes) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'registerHceRoutes', [routes]);
+        });
+    },
+
+    // Android only - response APDU as hex for the last 'hce-apdu' event
+    // fails when that command was answered already or the reader moved on
+    hceRespond: function(response) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'hceRespond', [response]);
+        });
+    },
+
+    // Android only - verify NTAG 424 DNA SUN messages in URI records when a tag is discovered
+    // config - {profiles: [{id, metaReadKey, fileReadKey, diversify, diversificationData,
+    //           piccParam ('picc_data'), cmacParam ('cmac'), macInputParam, uidParam, ctrParam}],
+    //           replayProtection (true)}
+    // keys are AES-128 keys as hex, the result is added to tag events as sun: {valid, uid, counter, replay, error}
+    configureSun: function(config) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'configureSun', [config]);
+        });
+    },
+
+    // Android only - describe discovered tags natively, the result is added to tag events as capabilities:
+    //   {family, chip, atqa, sak, historicalBytes, version, memorySize, fastRead, extendedApdu, maxTransceiveLength}
+    // config - {enabled (true), probe (false) to send GET_VERSION to NXP tags, uidPrefixLength (0 for the whole UID)}
+    // profiles are cached by UID prefix with ATQA/SAK, so known tags are not probed again
+    configureFingerprint: function(config) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'configureFingerprint', [config || {}]);
+        });
+    },
+
+    // Android only - verify the NXP originality signature of NTAG, Ultralight EV1 and DESFire family tags
+    // config - {keys: [{name, key}], cacheSize (1024)}, keys are uncompressed secp128r1 or secp224r1 points as hex,
+    //   e.g. {name: 'NTAG21x', key: '04494E1A386D3D3CFE3DC10E5DE68A499B1C202DB5B132393E89ED19FE5BE8BC61'}
+    // the result is added to tag events as originality: {valid, key, cached, signature, error}
+    configureOriginality: function(config) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'configureOriginality', [config]);
+        });
+    },
+
+    // Android only - receive NFC events filtered natively, independent of the document events
+    // options - {types: ['ndef', 'tag', 'reader-mode', ...], techs: ['IsoDep'], mimeTypes: ['text/plain'],
+    //            uids: ['04A2...'], detail: 'uid', 'summary' or 'full' (default)}
+    // callback receives {type, uid} for 'uid', {type, uid, techTypes, records, mimeType} for 'summary',
+    // the full event otherwise; returns the subscription id for nfc.unsubscribe
+    subscribe: function(callback, options, failure) {
+        var id = 'subscription' + (++subscriptionCount);
+        cordova.exec(callback, failure, 'NfcPlugin', 'subscribe', [id, options || {}]);
+        return id;
+    },
+
+    unsubscribe: function(id) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'unsubscribe', [id]);
+        });
+    },
+
+    // Android only - filter the events fired on document, takes the same options as nfc.subscribe
+    configureChannel: function(options) {
+        return new Promise(function(resolve, reject) {
+            cordova.exec(resolve, reject, 'NfcPlugin', 'configureChannel', [options || {}]);
         });
     },
 
@@ -911,6 +1057,12 @@ require('cordova/channel').onCordovaReady.subscribe(function() {
         var e = document.createEvent('Events');
         e.initEvent(message.type);
         e.tag = message.tag;
+        // results of native checks on the tag, e.g. sun
+        Object.keys(message).forEach(function(key) {
+            if (key !== 'type' && key !== 'tag') {
+                e[key] = message[key];
+            }
+        });
         document.dispatchEvent(e);
     }
   }